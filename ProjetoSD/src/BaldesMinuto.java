@@ -0,0 +1,197 @@
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.zone.ZoneOffsetTransition;
+import java.time.zone.ZoneRules;
+import java.util.Arrays;
+
+/**
+ * Agregados por minuto do dia (0 a 1439, hora local) de UM produto num dia:
+ * nº de vendas, quantidade, volume, preço mínimo e máximo.
+ *
+ * Só existem baldes para os minutos com vendas, guardados por ordem de minuto em arrays
+ * paralelos (como os eventos chegam por ordem, quase sempre basta atualizar o último).
+ * Uma consulta "entre as 14:00 e as 15:00" é uma pesquisa binária e a soma de até 60 baldes;
+ * os agregados por hora saem da mesma soma.
+ *
+ * O minuto é o da hora de parede no fuso do servidor, fixado no arranque (ZONA). Um dia da
+ * TSDB é lógico (acaba em proximoDia), não de calendário, por isso:
+ *  - se um dia passa da meia-noite, os eventos depois dela voltam ao minuto 0 e juntam-se
+ *    aos das primeiras horas desse mesmo dia (o balde é o minuto do relógio, não o tempo decorrido);
+ *  - na mudança para a hora de verão a hora saltada fica sem baldes; na volta à hora de
+ *    inverno a hora repetida cai duas vezes nos mesmos 60 baldes.
+ */
+public class BaldesMinuto {
+    public static final int MINUTOS_DIA = 24 * 60;
+    // Minuto(2) NumEventos(4) Qtd(8) Volume(8) PrecoMin(8) PrecoMax(8)
+    public static final int BYTES_BALDE = 2 + 4 + 8 + 8 + 8 + 8;
+
+    private short[] minutos = new short[4];
+    private int[] eventos = new int[4];
+    private long[] quantidades = new long[4];
+    private double[] volumes = new double[4];
+    private double[] minimos = new double[4];
+    private double[] maximos = new double[4];
+    private int tamanho = 0;
+
+    // Fuso lido uma vez: mudar o fuso da JVM a meio não mistura dois relógios no mesmo dia
+    public static final ZoneId ZONA = ZoneId.systemDefault();
+    private static final ZoneRules REGRAS = ZONA.getRules();
+
+    // Desvio do fuso válido em [desde, ate): entre duas mudanças de hora é sempre o mesmo
+    private static final class Desvio {
+        final long desde, ate, ms;
+
+        Desvio(long desde, long ate, long ms) {
+            this.desde = desde;
+            this.ate = ate;
+            this.ms = ms;
+        }
+    }
+
+    private static volatile Desvio desvio = new Desvio(0, 0, 0); // Vazio: o primeiro evento calcula
+
+    public static int minutoDoDia(long timestamp) {
+        Desvio d = desvio;
+        if (timestamp < d.desde || timestamp >= d.ate) desvio = d = calcularDesvio(timestamp);
+        return (int) (Math.floorMod(timestamp + d.ms, 86_400_000L) / 60_000L);
+    }
+
+    // Só nas mudanças de hora (ou com timestamps de outro período): o resto é a leitura acima
+    private static Desvio calcularDesvio(long timestamp) {
+        Instant instante = Instant.ofEpochMilli(timestamp);
+        ZoneOffsetTransition antes = REGRAS.previousTransition(instante.plusMillis(1));
+        ZoneOffsetTransition depois = REGRAS.nextTransition(instante);
+        long desde = antes == null ? Long.MIN_VALUE : antes.toEpochSecond() * 1000;
+        long ate = depois == null ? Long.MAX_VALUE : depois.toEpochSecond() * 1000;
+        return new Desvio(desde, ate, REGRAS.getOffset(instante).getTotalSeconds() * 1000L);
+    }
+
+    public void adicionar(int qtd, double preco, long timestamp) {
+        short minuto = (short) minutoDoDia(timestamp);
+        int i;
+        if (tamanho > 0 && minutos[tamanho - 1] == minuto) {
+            i = tamanho - 1; // Caso normal: mesmo minuto que o evento anterior
+        } else {
+            i = Arrays.binarySearch(minutos, 0, tamanho, minuto);
+            if (i < 0) i = inserir(-i - 1, minuto);
+        }
+        eventos[i]++;
+        quantidades[i] += qtd;
+        volumes[i] += qtd * preco;
+        minimos[i] = Math.min(minimos[i], preco);
+        maximos[i] = Math.max(maximos[i], preco);
+    }
+
+    private int inserir(int pos, short minuto) {
+        if (tamanho == minutos.length) crescer();
+        int mover = tamanho - pos;
+        if (mover > 0) { // Só acontece se o relógio recuar
+            System.arraycopy(minutos, pos, minutos, pos + 1, mover);
+            System.arraycopy(eventos, pos, eventos, pos + 1, mover);
+            System.arraycopy(quantidades, pos, quantidades, pos + 1, mover);
+            System.arraycopy(volumes, pos, volumes, pos + 1, mover);
+            System.arraycopy(minimos, pos, minimos, pos + 1, mover);
+            System.arraycopy(maximos, pos, maximos, pos + 1, mover);
+        }
+        minutos[pos] = minuto;
+        eventos[pos] = 0;
+        quantidades[pos] = 0;
+        volumes[pos] = 0;
+        minimos[pos] = Double.MAX_VALUE;
+        maximos[pos] = 0;
+        tamanho++;
+        return pos;
+    }
+
+    private void crescer() {
+        int novaCap = Math.min(MINUTOS_DIA, minutos.length * 2);
+        minutos = Arrays.copyOf(minutos, novaCap);
+        eventos = Arrays.copyOf(eventos, novaCap);
+        quantidades = Arrays.copyOf(quantidades, novaCap);
+        volumes = Arrays.copyOf(volumes, novaCap);
+        minimos = Arrays.copyOf(minimos, novaCap);
+        maximos = Arrays.copyOf(maximos, novaCap);
+    }
+
+    // Reconstrói os baldes a partir dos eventos (dias escritos antes de existirem baldes no ficheiro)
+    public static BaldesMinuto calcular(VistaEventos serie) {
+        if (serie == null || serie.tamanho() == 0) return null;
+        BaldesMinuto b = new BaldesMinuto();
+        for (int i = 0; i < serie.tamanho(); i++) b.adicionar(serie.getQuantidade(i), serie.getPreco(i), serie.getTimestamp(i));
+        return b;
+    }
+
+    /**
+     * Agregado dos minutos [minutoInicio, minutoFim) deste dia, ou null se não houve vendas.
+     * Usado para os dias em heap (dia corrente e dias fechados ainda não expulsos).
+     */
+    public Stats agregar(int minutoInicio, int minutoFim) {
+        int i = primeiroBalde(minutoInicio);
+        long n = 0, qtd = 0;
+        double vol = 0, max = 0, min = Double.MAX_VALUE;
+        for (; i < tamanho && minutos[i] < minutoFim; i++) {
+            n += eventos[i];
+            qtd += quantidades[i];
+            vol += volumes[i];
+            min = Math.min(min, minimos[i]);
+            max = Math.max(max, maximos[i]);
+        }
+        return n == 0 ? null : new Stats(qtd, vol, max, min, n);
+    }
+
+    private int primeiroBalde(int minuto) {
+        int i = Arrays.binarySearch(minutos, 0, tamanho, (short) minuto);
+        return i >= 0 ? i : -i - 1;
+    }
+
+    public long bytesEmHeap() {
+        return 64 + (long) minutos.length * (2 + 4 + 8 + 8 + 8 + 8);
+    }
+
+    // --- FORMATO EM DISCO ---
+    // NumBaldes(4) e depois BYTES_BALDE por balde, por ordem de minuto
+
+    public void escrever(DataOutputStream out) throws IOException {
+        out.writeInt(tamanho);
+        for (int i = 0; i < tamanho; i++) {
+            out.writeShort(minutos[i]);
+            out.writeInt(eventos[i]);
+            out.writeLong(quantidades[i]);
+            out.writeDouble(volumes[i]);
+            out.writeDouble(minimos[i]);
+            out.writeDouble(maximos[i]);
+        }
+    }
+
+    /**
+     * Mesmo que agregar, mas lido diretamente do ficheiro mapeado a partir de 'pos':
+     * pesquisa binária pelo primeiro minuto e só os baldes do intervalo são lidos.
+     */
+    public static Stats agregar(ByteBuffer buffer, int pos, int minutoInicio, int minutoFim) {
+        int n = buffer.getInt(pos);
+        int base = pos + 4;
+
+        int lo = 0, hi = n;
+        while (lo < hi) {
+            int meio = (lo + hi) >>> 1;
+            if (buffer.getShort(base + meio * BYTES_BALDE) < minutoInicio) lo = meio + 1;
+            else hi = meio;
+        }
+
+        long eventos = 0, qtd = 0;
+        double vol = 0, max = 0, min = Double.MAX_VALUE;
+        for (int i = lo; i < n; i++) {
+            int p = base + i * BYTES_BALDE;
+            if (buffer.getShort(p) >= minutoFim) break;
+            eventos += buffer.getInt(p + 2);
+            qtd += buffer.getLong(p + 6);
+            vol += buffer.getDouble(p + 14);
+            min = Math.min(min, buffer.getDouble(p + 22));
+            max = Math.max(max, buffer.getDouble(p + 30));
+        }
+        return eventos == 0 ? null : new Stats(qtd, vol, max, min, eventos);
+    }
+}
@@ -0,0 +1,52 @@
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Benchmark das consultas multi-dia sem o índice: tempo de agregarDiasEmParalelo
+ * em função do nº de dias (d) e do paralelismo do pool de consultas.
+ *
+ * Uso (numa pasta vazia, porque cria dia_N.bin):
+ *   java BenchAgregacao [dias=30] [eventosPorDia=200000] [repeticoes=5] [paralelismos=1,2,4,...]
+ *
+ * O orçamento de memória é mínimo, por isso cada consulta volta a carregar os dias do disco
+ * (dias "frios", com a cache do sistema de ficheiros quente).
+ */
+public class BenchAgregacao {
+    public static void main(String[] args) throws Exception {
+        int dias = args.length > 0 ? Integer.parseInt(args[0]) : 30;
+        int eventosPorDia = args.length > 1 ? Integer.parseInt(args[1]) : 200_000;
+        int repeticoes = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+        List<Integer> paralelismos = new ArrayList<>();
+        if (args.length > 3) {
+            for (String p : args[3].split(",")) paralelismos.add(Integer.parseInt(p));
+        } else {
+            for (int p = 1; p <= Runtime.getRuntime().availableProcessors(); p *= 2) paralelismos.add(p);
+        }
+
+        // 1. Gerar os dias (uma vez), se ainda não existirem
+        if (!new File("dia_" + dias + ".bin").exists()) {
+            System.out.println("A gerar " + dias + " dias com " + eventosPorDia + " eventos cada...");
+            TSDB gerador = new TSDB(dias, 1L << 30);
+            for (int dia = 0; dia < dias; dia++) {
+                for (int i = 0; i < eventosPorDia; i++) gerador.registaEvento("P" + (i % 100), 1 + i % 5, 1 + i % 50);
+                gerador.proximoDia();
+            }
+            gerador.aguardarPersistencia();
+        }
+
+        // 2. Medir cada combinação (paralelismo, d)
+        System.out.printf("%-12s %6s %12s%n", "paralelismo", "d", "ms/consulta");
+        for (int p : paralelismos) {
+            TSDB tsdb = new TSDB(dias, 1, WriteAheadLog.Durabilidade.DESLIGADA, p);
+            for (int d = 1; d <= dias; d = d < 5 ? d + 4 : d * 2) {
+                tsdb.agregarDiasEmParalelo("P7", d); // Aquecimento
+                long inicio = System.nanoTime();
+                for (int r = 0; r < repeticoes; r++) tsdb.agregarDiasEmParalelo("P7", d);
+                double ms = (System.nanoTime() - inicio) / 1e6 / repeticoes;
+                System.out.printf("%-12d %6d %12.2f%n", p, d, ms);
+            }
+        }
+        System.exit(0);
+    }
+}
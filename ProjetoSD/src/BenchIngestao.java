@@ -0,0 +1,67 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Benchmark de contenção na escrita: N threads a registar M vendas cada em simultâneo,
+ * com o throughput (vendas/s) para cada N. O WAL fica desligado para medir só os locks.
+ *
+ * Uso (numa pasta vazia, porque a TSDB grava dia_N.bin):
+ *   java BenchIngestao [vendasPorEscritor=200000] [escritores=1,2,4,...] [produtos=distintos|partilhado]
+ *
+ * Com "distintos" cada escritor tem os seus produtos (só o caminho partilhado do dia conta);
+ * com "partilhado" todos escrevem no mesmo produto (o pior caso para o lock da série).
+ */
+public class BenchIngestao {
+    private static final int PRODUTOS_POR_ESCRITOR = 16;
+
+    public static void main(String[] args) throws Exception {
+        int m = args.length > 0 ? Integer.parseInt(args[0]) : 200_000;
+        List<Integer> escritores = new ArrayList<>();
+        if (args.length > 1) {
+            for (String n : args[1].split(",")) escritores.add(Integer.parseInt(n));
+        } else {
+            for (int n = 1; n <= 2 * Runtime.getRuntime().availableProcessors(); n *= 2) escritores.add(n);
+        }
+        boolean partilhado = args.length > 2 && args[2].equals("partilhado");
+
+        TSDB tsdb = new TSDB(5, 1L << 30, WriteAheadLog.Durabilidade.DESLIGADA);
+        correr(tsdb, 1, m, partilhado); // Aquecimento (JIT)
+        tsdb.proximoDia();
+
+        System.out.printf("%-11s %12s %14s%n", "escritores", "ms", "vendas/s");
+        for (int n : escritores) {
+            long ms = Math.max(1, correr(tsdb, n, m, partilhado));
+            System.out.printf("%-11d %12d %14.0f%n", n, ms, (double) n * m / ms * 1000);
+            tsdb.proximoDia(); // Cada medição começa com um dia vazio
+        }
+        tsdb.aguardarPersistencia();
+        System.exit(0);
+    }
+
+    // Devolve os ms desde a partida (todos ao mesmo tempo) até o último escritor terminar
+    private static long correr(TSDB tsdb, int n, int m, boolean partilhado) throws InterruptedException {
+        CountDownLatch partida = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<>();
+        for (int e = 0; e < n; e++) {
+            String prefixo = partilhado ? "P" : "E" + e + "-";
+            Thread t = new Thread(() -> {
+                try {
+                    partida.await();
+                    for (int i = 0; i < m; i++) {
+                        String produto = partilhado ? prefixo : prefixo + (i % PRODUTOS_POR_ESCRITOR);
+                        tsdb.registaEvento(produto, 1 + i % 5, 1 + i % 50);
+                    }
+                } catch (Exception ex) {
+                    throw new RuntimeException(ex);
+                }
+            });
+            t.start();
+            threads.add(t);
+        }
+        long inicio = System.nanoTime();
+        partida.countDown();
+        for (Thread t : threads) t.join();
+        return (System.nanoTime() - inicio) / 1_000_000;
+    }
+}
@@ -0,0 +1,9 @@
+import java.io.IOException;
+
+/**
+ * Destino das respostas de um ServerWorker: a TaggedConnection no modo bloqueante
+ * ou a ligação não bloqueante do ServidorNIO. Pode bloquear se o cliente não estiver a ler.
+ */
+public interface CanalRespostas {
+    void send(int tag, int opCode, byte[] data) throws IOException;
+}
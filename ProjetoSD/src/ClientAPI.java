@@ -1,131 +1,328 @@
 import java.io.*;
 import java.net.Socket;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
 
 public class ClientAPI implements AutoCloseable {
     private final Demultiplexer demux;
 
     public ClientAPI(String host, int port) throws IOException {
+        this(host, port, ModoThreads.PLATAFORMA);
+    }
+
+    // Para clientes com muitas ligações (ex.: testes de carga): a thread de leitura de cada uma pode ser virtual
+    public ClientAPI(String host, int port, ModoThreads threads) throws IOException {
         Socket s = new Socket(host, port);
         TaggedConnection conn = new TaggedConnection(s);
-        this.demux = new Demultiplexer(conn);
+        this.demux = new Demultiplexer(conn, threads);
+    }
+
+    // --- PEDIDOS ASSÍNCRONOS ---
+    // Cada operação tem uma versão xxxAsync que devolve logo uma CompletableFuture (completada pela
+    // thread de leitura do Demultiplexer) e a versão bloqueante, que só espera por ela. Assim uma
+    // única ligação pode ter milhares de pedidos em curso sem uma thread por pedido.
+
+    private interface Escritor {
+        void escrever(DataOutputStream out) throws IOException;
+    }
+
+    private interface Leitor<T> {
+        T ler(DataInputStream in) throws IOException;
+    }
+
+    private <T> CompletableFuture<T> pedido(int opCode, Escritor escritor, Leitor<T> leitor) {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        try {
+            escritor.escrever(new DataOutputStream(baos));
+        } catch (IOException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+        return demux.sendAsync(opCode, baos.toByteArray()).thenApply(rep -> {
+            try {
+                return leitor.ler(new DataInputStream(new ByteArrayInputStream(rep)));
+            } catch (IOException e) {
+                throw new CompletionException(e);
+            }
+        });
+    }
+
+    // Espera pela resposta e relança a causa original de uma falha (como as versões bloqueantes sempre fizeram)
+    private static <T> T esperar(CompletableFuture<T> futuro) throws Exception {
+        try {
+            return futuro.get();
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+        }
     }
 
     // --- AUTENTICAÇÃO E REGISTO ---
 
+    public CompletableFuture<String> registerAsync(String user, String pass) {
+        return pedido(OpCode.REGISTER, out -> {
+            out.writeUTF(user);
+            out.writeUTF(pass);
+        }, in -> in.readUTF());
+    }
+
     public String register(String user, String pass) throws Exception {
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        DataOutputStream out = new DataOutputStream(baos);
-        out.writeUTF(user);
-        out.writeUTF(pass);
+        return esperar(registerAsync(user, pass));
+    }
 
-        byte[] rep = demux.send(OpCode.REGISTER, baos.toByteArray());
-        return new DataInputStream(new ByteArrayInputStream(rep)).readUTF();
+    public CompletableFuture<String> loginAsync(String user, String pass) {
+        return pedido(OpCode.LOGIN, out -> {
+            out.writeUTF(user);
+            out.writeUTF(pass);
+        }, in -> in.readUTF());
     }
 
     public String login(String user, String pass) throws Exception {
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        DataOutputStream out = new DataOutputStream(baos);
-        out.writeUTF(user);
-        out.writeUTF(pass);
-
-        byte[] rep = demux.send(OpCode.LOGIN, baos.toByteArray());
-        return new DataInputStream(new ByteArrayInputStream(rep)).readUTF();
+        return esperar(loginAsync(user, pass));
     }
 
     // --- REGISTO DE EVENTOS (ESCRITA) ---
 
+    public CompletableFuture<String> addEventAsync(String produto, int qtd, double preco) {
+        return pedido(OpCode.ADD_EVENT, out -> {
+            out.writeUTF(produto);
+            out.writeInt(qtd);
+            out.writeDouble(preco);
+        }, in -> in.readUTF());
+    }
+
     public String addEvent(String produto, int qtd, double preco) throws Exception {
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        DataOutputStream out = new DataOutputStream(baos);
-        out.writeUTF(produto);
-        out.writeInt(qtd);
-        out.writeDouble(preco);
+        return esperar(addEventAsync(produto, qtd, preco));
+    }
+
+    public CompletableFuture<Map<Integer, String>> addEventsAsync(LoteEventos lote) {
+        return pedido(OpCode.ADD_EVENTS, lote::serialize, in -> {
+            in.readInt(); // Nº de aceites (= tamanho do lote - nº de erros)
+            int numErros = in.readInt();
+            Map<Integer, String> erros = new LinkedHashMap<>();
+            for (int i = 0; i < numErros; i++) erros.put(in.readInt(), in.readUTF());
+            return erros;
+        });
+    }
 
-        byte[] rep = demux.send(OpCode.ADD_EVENT, baos.toByteArray());
-        return new DataInputStream(new ByteArrayInputStream(rep)).readUTF();
+    /**
+     * Envia várias vendas num só pedido. As vendas válidas são registadas;
+     * devolve as rejeitadas (posição no lote -> motivo), vazio se foram todas aceites.
+     */
+    public Map<Integer, String> addEvents(LoteEventos lote) throws Exception {
+        return esperar(addEventsAsync(lote));
     }
 
     // --- CONSULTAS DE AGREGAÇÃO (HISTÓRICO) ---
 
+    private static Escritor produtoDias(String produto, int dias) {
+        return out -> {
+            out.writeUTF(produto);
+            out.writeInt(dias);
+        };
+    }
+
+    public CompletableFuture<Long> getQuantityAsync(String produto, int dias) {
+        return pedido(OpCode.GET_QUANTITY, produtoDias(produto, dias), DataInputStream::readLong);
+    }
+
     public long getQuantity(String produto, int dias) throws Exception {
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        DataOutputStream out = new DataOutputStream(baos);
-        out.writeUTF(produto);
-        out.writeInt(dias);
+        return esperar(getQuantityAsync(produto, dias));
+    }
 
-        byte[] rep = demux.send(OpCode.GET_QUANTITY, baos.toByteArray());
-        return new DataInputStream(new ByteArrayInputStream(rep)).readLong();
+    public CompletableFuture<Double> getVolumeAsync(String produto, int dias) {
+        return pedido(OpCode.GET_VOLUME, produtoDias(produto, dias), DataInputStream::readDouble);
     }
 
     public double getVolume(String produto, int dias) throws Exception {
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        DataOutputStream out = new DataOutputStream(baos);
-        out.writeUTF(produto);
-        out.writeInt(dias);
+        return esperar(getVolumeAsync(produto, dias));
+    }
 
-        byte[] rep = demux.send(OpCode.GET_VOLUME, baos.toByteArray());
-        return new DataInputStream(new ByteArrayInputStream(rep)).readDouble();
+    public CompletableFuture<Double> getAvgPriceAsync(String produto, int dias) {
+        return pedido(OpCode.GET_AVG_PRICE, produtoDias(produto, dias), DataInputStream::readDouble);
     }
 
     public double getAvgPrice(String produto, int dias) throws Exception {
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        DataOutputStream out = new DataOutputStream(baos);
-        out.writeUTF(produto);
-        out.writeInt(dias);
+        return esperar(getAvgPriceAsync(produto, dias));
+    }
 
-        byte[] rep = demux.send(OpCode.GET_AVG_PRICE, baos.toByteArray());
-        return new DataInputStream(new ByteArrayInputStream(rep)).readDouble();
+    public CompletableFuture<Double> getMaxPriceAsync(String produto, int dias) {
+        return pedido(OpCode.GET_MAX_PRICE, produtoDias(produto, dias), DataInputStream::readDouble);
     }
 
     public double getMaxPrice(String produto, int dias) throws Exception {
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        DataOutputStream out = new DataOutputStream(baos);
-        out.writeUTF(produto);
+        return esperar(getMaxPriceAsync(produto, dias));
+    }
+
+    public CompletableFuture<Stats> getStatsAsync(String produto, int dias) {
+        return pedido(OpCode.GET_STATS, produtoDias(produto, dias), Stats::deserialize);
+    }
+
+    // Quantidade, volume, preço médio, máximo e nº de vendas num só pedido
+    public Stats getStats(String produto, int dias) throws Exception {
+        return esperar(getStatsAsync(produto, dias));
+    }
+
+    public CompletableFuture<Stats> getStatsIncludingTodayAsync(String produto, int dias) {
+        return pedido(OpCode.GET_STATS_TODAY, produtoDias(produto, dias), Stats::deserialize);
+    }
+
+    // Como getStats, mas inclui as vendas de hoje (dias = dias anteriores a somar; 0 = só hoje)
+    public Stats getStatsIncludingToday(String produto, int dias) throws Exception {
+        return esperar(getStatsIncludingTodayAsync(produto, dias));
+    }
+
+    // Resposta de TOP_K: N(4) e N x (Produto(UTF) Stats), por ordem
+    private static Map<String, Stats> lerMapaStats(DataInputStream in) throws IOException {
+        Map<String, Stats> res = new LinkedHashMap<>();
+        int n = in.readInt();
+        for (int i = 0; i < n; i++) {
+            res.put(in.readUTF(), Stats.deserialize(in));
+        }
+        return res;
+    }
+
+    // Recebe as estatísticas de um GET_STATS_BATCH, produto a produto, à medida que os frames chegam
+    public interface ConsumidorStats {
+        void aceitar(String produto, Stats stats) throws Exception;
+    }
+
+    /**
+     * Estatísticas de vários produtos num só pedido, pela ordem da lista. A resposta vem em fluxo
+     * (blocos de produtos, com crédito como no filterEventsStream): listas muito grandes não
+     * ficam inteiras em memória em nenhum dos lados.
+     *
+     * @return número de produtos recebidos
+     */
+    public int getStatsBatchStream(List<String> produtos, int dias, ConsumidorStats consumidor) throws Exception {
+        ByteArrayOutputStream pedido = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(pedido);
         out.writeInt(dias);
+        out.writeInt(produtos.size());
+        for (String s : produtos) {
+            out.writeUTF(s);
+        }
+        try (Demultiplexer.Fluxo fluxo = demux.sendStream(OpCode.GET_STATS_BATCH, pedido.toByteArray())) {
+            byte[] chunk;
+            while ((chunk = fluxo.proximo()) != null) {
+                DataInputStream in = new DataInputStream(new ByteArrayInputStream(chunk));
+                while (in.available() > 0) {
+                    consumidor.aceitar(in.readUTF(), Stats.deserialize(in));
+                }
+            }
+            return new DataInputStream(new ByteArrayInputStream(fluxo.getFim())).readInt();
+        }
+    }
+
+    // Estatísticas de vários produtos num só pedido (pela ordem da lista)
+    public Map<String, Stats> getStatsBatch(List<String> produtos, int dias) throws Exception {
+        Map<String, Stats> res = new LinkedHashMap<>();
+        getStatsBatchStream(produtos, dias, res::put);
+        return res;
+    }
 
-        byte[] rep = demux.send(OpCode.GET_MAX_PRICE, baos.toByteArray());
-        return new DataInputStream(new ByteArrayInputStream(rep)).readDouble();
+    public CompletableFuture<Map<String, Stats>> getTopKAsync(int k, int dias, boolean porVolume) {
+        return pedido(OpCode.TOP_K, out -> {
+            out.writeInt(k);
+            out.writeInt(dias);
+            out.writeBoolean(porVolume);
+        }, ClientAPI::lerMapaStats);
+    }
+
+    // Os k produtos que mais venderam nos últimos dias (por volume ou por quantidade), do maior para o menor
+    public Map<String, Stats> getTopK(int k, int dias, boolean porVolume) throws Exception {
+        return esperar(getTopKAsync(k, dias, porVolume));
+    }
+
+    public CompletableFuture<double[]> getPercentilesAsync(String produto, int dias, double... quantis) {
+        return pedido(OpCode.GET_PERCENTILES, out -> {
+            out.writeUTF(produto);
+            out.writeInt(dias);
+            out.writeInt(quantis.length);
+            for (double q : quantis) {
+                out.writeDouble(q);
+            }
+        }, in -> {
+            double[] res = new double[quantis.length];
+            for (int i = 0; i < res.length; i++) {
+                res[i] = in.readDouble();
+            }
+            return res;
+        });
+    }
+
+    /**
+     * Preço de venda nos quantis pedidos (0 a 1, ex.: 0.5, 0.95, 0.99) nos últimos dias.
+     * Aproximado: erro relativo até 1% (ver SketchPrecos).
+     */
+    public double[] getPercentiles(String produto, int dias, double... quantis) throws Exception {
+        return esperar(getPercentilesAsync(produto, dias, quantis));
+    }
+
+    public CompletableFuture<Stats> getTimeRangeStatsAsync(String produto, int dias, int minutoInicio, int minutoFim) {
+        return pedido(OpCode.GET_TIME_RANGE, out -> {
+            out.writeUTF(produto);
+            out.writeInt(dias);
+            out.writeInt(minutoInicio);
+            out.writeInt(minutoFim);
+        }, Stats::deserialize);
+    }
+
+    /**
+     * Estatísticas do produto entre duas horas do dia em cada um dos últimos dias,
+     * ex.: das 14:00 (840) às 15:00 (900). Os minutos contam desde a meia-noite; o fim é exclusivo.
+     */
+    public Stats getTimeRangeStats(String produto, int dias, int minutoInicio, int minutoFim) throws Exception {
+        return esperar(getTimeRangeStatsAsync(produto, dias, minutoInicio, minutoFim));
     }
 
     // --- NOTIFICAÇÕES (BLOQUEANTES) ---
+    // O servidor atende os pedidos de cada ligação por ordem: enquanto a espera não terminar
+    // (pode durar até ao fim do dia), os pedidos seguintes nesta ligação ficam atrás dela
+
+    public CompletableFuture<String> waitSimultaneousAsync(String p1, String p2) {
+        return pedido(OpCode.SIMULTANEOUS_SALES, out -> {
+            out.writeUTF(p1);
+            out.writeUTF(p2);
+        }, in -> in.readUTF());
+    }
 
     public String waitSimultaneous(String p1, String p2) throws Exception {
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        DataOutputStream out = new DataOutputStream(baos);
-        out.writeUTF(p1);
-        out.writeUTF(p2);
+        return esperar(waitSimultaneousAsync(p1, p2));
+    }
 
-        byte[] rep = demux.send(OpCode.SIMULTANEOUS_SALES, baos.toByteArray());
-        return new DataInputStream(new ByteArrayInputStream(rep)).readUTF();
+    public CompletableFuture<String> waitConsecutiveAsync(String p, int n) {
+        return pedido(OpCode.CONSECUTIVE_SALES, out -> {
+            out.writeUTF(p);
+            out.writeInt(n);
+        }, in -> in.readUTF());
     }
 
     public String waitConsecutive(String p, int n) throws Exception {
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        DataOutputStream out = new DataOutputStream(baos);
-        out.writeUTF(p);
-        out.writeInt(n);
-
-        byte[] rep = demux.send(OpCode.CONSECUTIVE_SALES, baos.toByteArray());
-        return new DataInputStream(new ByteArrayInputStream(rep)).readUTF();
+        return esperar(waitConsecutiveAsync(p, n));
     }
 
 
     public String filterEvents(List<String> produtos, int dias) throws Exception {
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        DataOutputStream out = new DataOutputStream(baos);
+        return filterEvents(produtos, dias, null);
+    }
 
-        out.writeInt(dias);
-        out.writeInt(produtos.size());
-        for (String s : produtos) {
-            out.writeUTF(s);
-        }
+    public CompletableFuture<String> filterEventsAsync(List<String> produtos, int dias, FiltroEventos filtro) {
+        return pedido(OpCode.FILTER_EVENTS, out -> escreverFiltro(out, produtos, dias, filtro), ClientAPI::lerFiltro);
+    }
 
-        byte[] rep = demux.send(OpCode.FILTER_EVENTS, baos.toByteArray());
+    /**
+     * Filtro com critérios aplicados no servidor, ex.:
+     * FiltroEventos.todos().entre(desde, ate).preco(0, 10) — só os eventos aceites são enviados.
+     */
+    public String filterEvents(List<String> produtos, int dias, FiltroEventos filtro) throws Exception {
+        return esperar(filterEventsAsync(produtos, dias, filtro));
+    }
 
-        DataInputStream in = new DataInputStream(new ByteArrayInputStream(rep));
+    private static String lerFiltro(DataInputStream in) throws IOException {
         StringBuilder sb = new StringBuilder();
 
         Map<Integer, String> dicionario = new HashMap<>();
@@ -161,6 +358,50 @@ public class ClientAPI implements AutoCloseable {
         return sb.toString();
     }
 
+    private static void escreverFiltro(DataOutputStream out, List<String> produtos, int dias, FiltroEventos filtro)
+            throws IOException {
+        out.writeInt(dias);
+        out.writeInt(produtos.size());
+        for (String s : produtos) {
+            out.writeUTF(s);
+        }
+        if (filtro != null) filtro.serialize(out);
+    }
+
+    // Recebe os eventos de um filtro em fluxo, um a um, à medida que os frames chegam.
+    // Pode fazer outros pedidos na mesma ligação: a thread de leitura nunca fica à espera dele.
+    public interface ConsumidorEventos {
+        void aceitar(String produto, Evento evento) throws Exception;
+    }
+
+    /**
+     * Versão em fluxo do filterEvents para resultados grandes: o servidor envia os eventos
+     * em vários frames e cada evento é entregue ao consumidor sem juntar a resposta inteira
+     * em memória. O servidor só envia os frames para que há crédito (alguns de cada vez), e se o
+     * consumidor lançar uma exceção o fluxo é cancelado também no servidor.
+     *
+     * @return número total de eventos recebidos
+     */
+    public long filterEventsStream(List<String> produtos, int dias, FiltroEventos filtro,
+                                   ConsumidorEventos consumidor) throws Exception {
+        ByteArrayOutputStream pedido = new ByteArrayOutputStream();
+        escreverFiltro(new DataOutputStream(pedido), produtos, dias, filtro);
+        try (Demultiplexer.Fluxo fluxo = demux.sendStream(OpCode.FILTER_EVENTS_STREAM, pedido.toByteArray())) {
+            byte[] chunk;
+            while ((chunk = fluxo.proximo()) != null) {
+                DataInputStream in = new DataInputStream(new ByteArrayInputStream(chunk));
+                while (in.available() > 0) {
+                    String produto = in.readUTF();
+                    int n = in.readInt();
+                    for (int i = 0; i < n; i++) {
+                        consumidor.aceitar(produto, Evento.deserialize(in));
+                    }
+                }
+            }
+            return new DataInputStream(new ByteArrayInputStream(fluxo.getFim())).readLong();
+        }
+    }
+
     @Override
     public void close() throws Exception {
         demux.close();
@@ -1,5 +1,6 @@
 import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
 import java.util.Scanner;
 
 public class ClientMenu {
@@ -76,6 +77,11 @@ public class ClientMenu {
         System.out.println("6: Wait simultaneous sales");
         System.out.println("7: Wait consecutive sales");
         System.out.println("8: Filtrar Eventos");
+        System.out.println("9: Get todas as estatísticas");
+        System.out.println("10: Top K produtos");
+        System.out.println("11: Percentis do preço (p50/p95/p99)");
+        System.out.println("12: Estatísticas entre duas horas do dia");
+        System.out.println("13: Estatísticas incluindo hoje");
         System.out.println("0: Sair");
         System.out.print("> ");
 
@@ -142,12 +148,71 @@ public class ClientMenu {
                     System.out.print("Consultar quantos dias atrás? (1-D): ");
                     int d8 = Integer.parseInt(sc.nextLine());
 
-                    System.out.println("\nA pedir dados comprimidos ao servidor...");
-                    System.out.println(api.filterEvents(listaProds, d8));
+                    System.out.println("\nA receber eventos do servidor...");
+                    // Em fluxo: os eventos são mostrados à medida que chegam
+                    long total = api.filterEventsStream(listaProds, d8, null, (produto, e) ->
+                            System.out.printf("%s -> Qtd: %d | Preço: %.2f €%n", produto, e.getQuantidade(), e.getPreco()));
+                    System.out.println(total == 0 ? "Nenhum evento encontrado para os critérios selecionados."
+                            : "Total: " + total + " eventos.");
 
                     primaEnter();
                     break;
 
+                case "9":
+                    System.out.print("Produto: "); String p9 = sc.nextLine();
+                    System.out.print("Dias atrás (1-D): "); int d9 = Integer.parseInt(sc.nextLine());
+                    Stats st = api.getStats(p9, d9);
+                    System.out.println("Quantidade Total: " + st.getQuantidadeTotal());
+                    System.out.println("Volume Total: " + st.getVolumeTotal());
+                    System.out.println("Preço Médio: " + st.getPrecoMedio());
+                    System.out.println("Preço Máximo: " + st.getPrecoMaximo());
+                    System.out.println("Número de Vendas: " + st.getNumEventos());
+                    primaEnter();
+                    break;
+
+                case "10":
+                    System.out.print("K: "); int k = Integer.parseInt(sc.nextLine());
+                    System.out.print("Dias atrás (1-D): "); int d10 = Integer.parseInt(sc.nextLine());
+                    System.out.print("Ordenar por volume? (s/n): "); boolean porVolume = sc.nextLine().equalsIgnoreCase("s");
+                    int pos = 1;
+                    for (Map.Entry<String, Stats> e : api.getTopK(k, d10, porVolume).entrySet()) {
+                        System.out.printf("%d. %s | Qtd: %d | Volume: %.2f €%n", pos++, e.getKey(),
+                                e.getValue().getQuantidadeTotal(), e.getValue().getVolumeTotal());
+                    }
+                    primaEnter();
+                    break;
+
+                case "11":
+                    System.out.print("Produto: "); String p11 = sc.nextLine();
+                    System.out.print("Dias atrás (1-D): "); int d11 = Integer.parseInt(sc.nextLine());
+                    double[] pct = api.getPercentiles(p11, d11, 0.5, 0.95, 0.99);
+                    System.out.printf("p50: %.2f € | p95: %.2f € | p99: %.2f €%n", pct[0], pct[1], pct[2]);
+                    primaEnter();
+                    break;
+
+                case "12":
+                    System.out.print("Produto: "); String p12 = sc.nextLine();
+                    System.out.print("Dias atrás (1-D): "); int d12 = Integer.parseInt(sc.nextLine());
+                    System.out.print("Das (HH:MM): "); int ini = paraMinutos(sc.nextLine());
+                    System.out.print("Até (HH:MM): "); int fim = paraMinutos(sc.nextLine());
+                    Stats st12 = api.getTimeRangeStats(p12, d12, ini, fim);
+                    System.out.println("Quantidade: " + st12.getQuantidadeTotal() + " | Volume: " + st12.getVolumeTotal()
+                            + " | Vendas: " + st12.getNumEventos());
+                    primaEnter();
+                    break;
+
+                case "13":
+                    System.out.print("Produto: "); String p13 = sc.nextLine();
+                    System.out.print("Dias anteriores a somar a hoje (0-D): "); int d13 = Integer.parseInt(sc.nextLine());
+                    Stats st13 = api.getStatsIncludingToday(p13, d13);
+                    System.out.println("Quantidade Total: " + st13.getQuantidadeTotal());
+                    System.out.println("Volume Total: " + st13.getVolumeTotal());
+                    System.out.println("Preço Médio: " + st13.getPrecoMedio());
+                    System.out.println("Preço Máximo: " + st13.getPrecoMaximo());
+                    System.out.println("Número de Vendas: " + st13.getNumEventos());
+                    primaEnter();
+                    break;
+
                 case "0":
                     System.exit(0);
                     break;
@@ -160,4 +225,10 @@ public class ClientMenu {
             primaEnter();
         }
     }
-}
\ No newline at end of file
+
+    // "14:30" -> 870 minutos desde a meia-noite
+    private static int paraMinutos(String hhmm) {
+        String[] partes = hhmm.trim().split(":");
+        return Integer.parseInt(partes[0]) * 60 + (partes.length > 1 ? Integer.parseInt(partes[1]) : 0);
+    }
+}
@@ -0,0 +1,218 @@
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Codificação comprimida dos eventos de um produto em disco, em blocos de até TAMANHO_BLOCO eventos.
+ *
+ * Cabeçalho de cada bloco: NumEventos(4) TsPrimeiro(8) TsUltimo(8) Bytes(4) CRC32(4)
+ * Corpo do bloco (as três colunas seguidas):
+ *   - Timestamps: delta-of-delta em varint zigzag (as vendas chegam por ordem, os deltas repetem-se)
+ *   - Quantidades: varint zigzag (quase sempre 1 byte)
+ *   - Preços: dicionário (1 byte por evento) se o bloco tiver poucos preços distintos;
+ *             senão XOR com o preço anterior, guardando só os bits significativos
+ *
+ * O CRC de cada bloco deteta corrupção sem ter de validar o ficheiro inteiro.
+ */
+public class CodecEventos {
+    public static final int TAMANHO_BLOCO = 1024;
+    public static final int BYTES_CABECALHO = 4 + 8 + 8 + 4 + 4;
+
+    private static final int MAX_DICIONARIO = 256;
+    private static final byte PRECOS_DICIONARIO = 1;
+    private static final byte PRECOS_XOR = 0;
+
+    // --- CODIFICAÇÃO ---
+
+    public static void codificar(VistaEventos serie, DataOutputStream out) throws IOException {
+        ByteArrayOutputStream corpo = new ByteArrayOutputStream();
+        for (int inicio = 0; inicio < serie.tamanho(); inicio += TAMANHO_BLOCO) {
+            int fim = Math.min(serie.tamanho(), inicio + TAMANHO_BLOCO);
+
+            corpo.reset();
+            codificarTimestamps(serie, inicio, fim, corpo);
+            for (int i = inicio; i < fim; i++) escreverVarLong(corpo, zigzag(serie.getQuantidade(i)));
+            codificarPrecos(serie, inicio, fim, corpo);
+
+            byte[] bytes = corpo.toByteArray();
+            CRC32 crc = new CRC32();
+            crc.update(bytes);
+
+            out.writeInt(fim - inicio);
+            out.writeLong(serie.getTimestamp(inicio));
+            out.writeLong(serie.getTimestamp(fim - 1));
+            out.writeInt(bytes.length);
+            out.writeInt((int) crc.getValue());
+            out.write(bytes);
+        }
+    }
+
+    private static void codificarTimestamps(VistaEventos serie, int inicio, int fim, ByteArrayOutputStream out) {
+        // O primeiro timestamp já vai no cabeçalho do bloco
+        long anterior = serie.getTimestamp(inicio);
+        long deltaAnterior = 0;
+        for (int i = inicio + 1; i < fim; i++) {
+            long delta = serie.getTimestamp(i) - anterior;
+            escreverVarLong(out, zigzag(delta - deltaAnterior));
+            anterior = serie.getTimestamp(i);
+            deltaAnterior = delta;
+        }
+    }
+
+    private static void codificarPrecos(VistaEventos serie, int inicio, int fim, ByteArrayOutputStream out) {
+        // Tentar o dicionário primeiro: nas lojas os preços repetem-se muito
+        Map<Long, Integer> dicionario = new HashMap<>();
+        for (int i = inicio; i < fim && dicionario.size() <= MAX_DICIONARIO; i++) {
+            dicionario.putIfAbsent(Double.doubleToRawLongBits(serie.getPreco(i)), dicionario.size());
+        }
+
+        if (dicionario.size() <= MAX_DICIONARIO) {
+            out.write(PRECOS_DICIONARIO);
+            escreverVarLong(out, dicionario.size());
+            long[] valores = new long[dicionario.size()];
+            for (Map.Entry<Long, Integer> e : dicionario.entrySet()) valores[e.getValue()] = e.getKey();
+            for (long v : valores) escreverLong(out, v);
+            for (int i = inicio; i < fim; i++) {
+                out.write(dicionario.get(Double.doubleToRawLongBits(serie.getPreco(i))));
+            }
+        } else {
+            out.write(PRECOS_XOR);
+            long anterior = 0;
+            for (int i = inicio; i < fim; i++) {
+                long bits = Double.doubleToRawLongBits(serie.getPreco(i));
+                long xor = bits ^ anterior;
+                // Zeros à direita (64 = preço igual ao anterior) + bits significativos em varint
+                int zeros = Long.numberOfTrailingZeros(xor);
+                out.write(zeros);
+                if (zeros < 64) escreverVarLong(out, xor >>> zeros);
+                anterior = bits;
+            }
+        }
+    }
+
+    // --- DESCODIFICAÇÃO ---
+
+    /**
+     * Descodifica os blocos de um produto a partir de 'offset' para colunas em heap.
+     * Lança IOException se o CRC de algum bloco não bater certo.
+     */
+    public static SerieProduto descodificar(ByteBuffer buffer, int offset, int numEventos) throws IOException {
+        return descodificar(buffer, offset, numEventos, Long.MIN_VALUE, Long.MAX_VALUE);
+    }
+
+    /**
+     * Como descodificar, mas só os blocos cujo intervalo [TsPrimeiro, TsUltimo] toca em [tsDesde, tsAte):
+     * os outros são saltados pelo cabeçalho, sem ler o corpo nem verificar o CRC.
+     * Os blocos das pontas vêm inteiros (o corte fino é feito pelo FiltroEventos).
+     */
+    public static SerieProduto descodificar(ByteBuffer buffer, int offset, int numEventos, long tsDesde, long tsAte)
+            throws IOException {
+        boolean tudo = tsDesde == Long.MIN_VALUE && tsAte == Long.MAX_VALUE;
+        SerieProduto serie = new SerieProduto(tudo ? numEventos : TAMANHO_BLOCO);
+        int pos = offset;
+        int percorridos = 0;
+        while (percorridos < numEventos) {
+            int n = buffer.getInt(pos);
+            long tsPrimeiro = buffer.getLong(pos + 4);
+            long tsUltimo = buffer.getLong(pos + 12);
+            int bytes = buffer.getInt(pos + 20);
+            int crcEsperado = buffer.getInt(pos + 24);
+
+            if (tsPrimeiro >= tsAte) break; // Os blocos seguintes são ainda mais recentes
+            if (tsUltimo >= tsDesde) {
+                byte[] corpo = new byte[bytes];
+                buffer.get(pos + BYTES_CABECALHO, corpo);
+                CRC32 crc = new CRC32();
+                crc.update(corpo);
+                if ((int) crc.getValue() != crcEsperado) {
+                    throw new IOException("Bloco corrompido (CRC inválido) na posição " + pos);
+                }
+                descodificarBloco(corpo, n, tsPrimeiro, serie);
+            }
+            percorridos += n;
+            pos += BYTES_CABECALHO + bytes;
+        }
+        return serie;
+    }
+
+    private static void descodificarBloco(byte[] corpo, int n, long tsPrimeiro, SerieProduto destino) {
+        Leitor in = new Leitor(corpo);
+
+        long[] timestamps = new long[n];
+        timestamps[0] = tsPrimeiro;
+        long delta = 0;
+        for (int i = 1; i < n; i++) {
+            delta += unzigzag(in.varLong());
+            timestamps[i] = timestamps[i - 1] + delta;
+        }
+
+        int[] quantidades = new int[n];
+        for (int i = 0; i < n; i++) quantidades[i] = (int) unzigzag(in.varLong());
+
+        double[] precos = new double[n];
+        if (in.byteSemSinal() == PRECOS_DICIONARIO) {
+            double[] valores = new double[(int) in.varLong()];
+            for (int k = 0; k < valores.length; k++) valores[k] = Double.longBitsToDouble(in.longFixo());
+            for (int i = 0; i < n; i++) precos[i] = valores[in.byteSemSinal()];
+        } else {
+            long anterior = 0;
+            for (int i = 0; i < n; i++) {
+                int zeros = in.byteSemSinal();
+                long xor = zeros < 64 ? in.varLong() << zeros : 0;
+                anterior ^= xor;
+                precos[i] = Double.longBitsToDouble(anterior);
+            }
+        }
+
+        for (int i = 0; i < n; i++) destino.adicionar(quantidades[i], precos[i], timestamps[i]);
+    }
+
+    // --- PRIMITIVAS (varint / zigzag) ---
+
+    private static long zigzag(long v) { return (v << 1) ^ (v >> 63); }
+
+    private static long unzigzag(long v) { return (v >>> 1) ^ -(v & 1); }
+
+    private static void escreverVarLong(ByteArrayOutputStream out, long v) {
+        while ((v & ~0x7FL) != 0) {
+            out.write((int) ((v & 0x7F) | 0x80));
+            v >>>= 7;
+        }
+        out.write((int) v);
+    }
+
+    private static void escreverLong(ByteArrayOutputStream out, long v) {
+        for (int s = 56; s >= 0; s -= 8) out.write((int) (v >>> s));
+    }
+
+    // Leitura sequencial de um bloco já copiado para um array
+    private static class Leitor {
+        private final byte[] b;
+        private int pos = 0;
+
+        Leitor(byte[] b) { this.b = b; }
+
+        int byteSemSinal() { return b[pos++] & 0xFF; }
+
+        long varLong() {
+            long v = 0;
+            int shift = 0;
+            while (true) {
+                byte x = b[pos++];
+                v |= (long) (x & 0x7F) << shift;
+                if (x >= 0) return v;
+                shift += 7;
+            }
+        }
+
+        long longFixo() {
+            long v = 0;
+            for (int i = 0; i < 8; i++) v = (v << 8) | (b[pos++] & 0xFF);
+            return v;
+        }
+    }
+}
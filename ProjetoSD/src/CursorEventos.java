@@ -0,0 +1,30 @@
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * Cursor (flyweight) para percorrer os eventos de um produto linha a linha
+ * sem criar um objeto Evento por venda.
+ *
+ * Uso: while (c.proximo()) { c.quantidade(); c.preco(); ... }
+ */
+public class CursorEventos {
+    private final VistaEventos serie;
+    private int pos = -1;
+
+    public CursorEventos(VistaEventos serie) {
+        this.serie = serie;
+    }
+
+    public boolean proximo() {
+        return ++pos < serie.tamanho();
+    }
+
+    public int quantidade() { return serie.getQuantidade(pos); }
+    public double preco() { return serie.getPreco(pos); }
+    public long timestamp() { return serie.getTimestamp(pos); }
+
+    // Escreve a linha atual com o mesmo formato binário do Evento
+    public void serializar(DataOutputStream out) throws IOException {
+        Evento.escrever(out, quantidade(), preco(), timestamp());
+    }
+}
@@ -1,6 +1,14 @@
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
@@ -12,10 +20,18 @@ public class Demultiplexer implements AutoCloseable {
     private final Map<Integer, Entry> waiters = new HashMap<>();
     private IOException exception = null; // Para propagar erros de rede
 
+    // CHUNKs que o servidor pode enviar a um fluxo sem o consumidor os ter lido. A fila do fluxo
+    // nunca passa disto (mais o OK/ERROR final), por isso a thread de leitura nunca pára por ele
+    private static final int JANELA_FLUXO = 8;
+
     private class Entry {
-        Frame frame = null; // Onde a resposta será depositada
+        // Pedidos simples: completada pela thread de leitura com o payload da resposta
+        CompletableFuture<byte[]> resposta = null;
+
+        // Só nas respostas em fluxo (vários frames CHUNK e um OK/ERROR final)
         Condition cond;     // A campainha específica para esta Tag
-        int waiters = 0;    // Para controlo opcional de limpeza
+        ArrayDeque<Frame> fila = null;
+        boolean cancelado = false;
 
         Entry(Condition cond) {
             this.cond = cond;
@@ -29,73 +45,231 @@ public class Demultiplexer implements AutoCloseable {
     }
 
     public Demultiplexer(TaggedConnection conn) {
+        this(conn, ModoThreads.PLATAFORMA);
+    }
+
+    // Com ModoThreads.VIRTUAIS a thread de leitura é virtual: muitas ligações sem uma thread do sistema cada
+    public Demultiplexer(TaggedConnection conn, ModoThreads threads) {
         this.conn = conn;
         // Lançar a thread de leitura (Receiver)
-        new Thread(() -> {
+        threads.nova("demux-receptor", () -> {
             try {
                 while (true) {
                     Frame f = conn.receive(); // Fora do lock para não bloquear o socket
+                    CompletableFuture<byte[]> pronta = null;
                     lock.lock();
                     try {
                         Entry e = waiters.get(f.tag);
                         if (e == null) {
                             // Caso estranho: resposta para algo que não pedimos
                             // (ou o cliente desistiu por timeout)
+                        } else if (e.fila != null) {
+                            entregarNoFluxo(f, e);
                         } else {
-                            e.frame = f;
-                            e.cond.signal(); // Acorda a thread específica
+                            waiters.remove(f.tag);
+                            pronta = e.resposta;
                         }
                     } finally {
                         lock.unlock();
                     }
+                    // Completar fora do lock: as continuações (thenApply, ...) correm nesta thread
+                    if (pronta != null) pronta.complete(f.payload);
                 }
             } catch (IOException e) {
+                List<CompletableFuture<byte[]>> pendentes = new ArrayList<>();
                 lock.lock();
                 try {
                     this.exception = e;
                     // Acordar toda a gente se a rede morrer
-                    for (Entry entry : waiters.values()) entry.cond.signalAll();
+                    for (Entry entry : waiters.values()) {
+                        if (entry.resposta != null) pendentes.add(entry.resposta);
+                        else entry.cond.signalAll();
+                    }
                 } finally {
                     lock.unlock();
                 }
+                for (CompletableFuture<byte[]> p : pendentes) p.completeExceptionally(e);
             }
         }).start();
     }
 
-    public byte[] send(int opCode, byte[] data) throws IOException, InterruptedException {
+    // Chamado pela thread de leitura com o lock adquirido. Nunca espera: o servidor só envia
+    // os CHUNKs para que o consumidor deu crédito, por isso a fila está sempre limitada
+    private void entregarNoFluxo(Frame f, Entry e) {
+        if (f.opCode != OpCode.CHUNK) waiters.remove(f.tag); // OK/ERROR: o fluxo acabou
+        if (e.cancelado) return; // O consumidor desistiu: descartamos até ao fim do fluxo
+        e.fila.add(f);
+        e.cond.signal();
+    }
+
+    private static byte[] credito(int n) {
+        return ByteBuffer.allocate(4).putInt(n).array();
+    }
+
+    /**
+     * Envia um pedido cuja resposta chega em vários frames com a mesma tag.
+     * Os frames são lidos um a um com Fluxo.proximo(); o crédito para os seguintes é
+     * devolvido ao servidor à medida que são lidos (STREAM_CREDIT).
+     */
+    public Fluxo sendStream(int opCode, byte[] data) throws IOException {
         int tag;
         Entry e;
 
         lock.lock();
         try {
-            // 1. Gerar Tag única (pode ser um contador global)
+            if (exception != null) throw exception;
             tag = getNextTag();
-
-            // 2. Criar entrada no mapa
             e = new Entry(lock.newCondition());
+            e.fila = new ArrayDeque<>();
             waiters.put(tag, e);
         } finally {
             lock.unlock();
         }
 
-        // 3. Enviar o frame (usando o lock de escrita da TaggedConnection)
-        conn.send(tag, opCode, data);
+        try {
+            conn.send(tag, opCode, data);
+            conn.send(tag, OpCode.STREAM_CREDIT, credito(JANELA_FLUXO)); // Janela inicial
+        } catch (IOException ex) {
+            lock.lock();
+            try {
+                waiters.remove(tag);
+            } finally {
+                lock.unlock();
+            }
+            throw ex;
+        }
+        return new Fluxo(tag, e);
+    }
+
+    // Lido por uma só thread (a do consumidor)
+    public class Fluxo implements AutoCloseable {
+        private final int tag;
+        private final Entry e;
+        private byte[] fim = null;
+        private boolean terminado = false;
+        private int porCreditar = 0; // CHUNKs lidos cujo crédito ainda não foi devolvido
+
+        private Fluxo(int tag, Entry e) {
+            this.tag = tag;
+            this.e = e;
+        }
+
+        /**
+         * Payload do próximo CHUNK, ou null quando o fluxo termina com OK.
+         * Se o servidor terminar com ERROR, lança IOException com a mensagem dele.
+         */
+        public byte[] proximo() throws IOException, InterruptedException {
+            byte[] chunk;
+            lock.lock();
+            try {
+                if (terminado) return null;
+                while (e.fila.isEmpty() && exception == null) {
+                    e.cond.await();
+                }
+                if (e.fila.isEmpty()) throw exception;
+
+                Frame f = e.fila.poll();
+                if (f.opCode != OpCode.CHUNK) {
+                    terminado = true;
+                    if (f.opCode == OpCode.ERROR) {
+                        throw new IOException(new DataInputStream(new ByteArrayInputStream(f.payload)).readUTF());
+                    }
+                    fim = f.payload;
+                    return null;
+                }
+                chunk = f.payload;
+            } finally {
+                lock.unlock();
+            }
+
+            // Devolver o crédito a cada meia janela lida (fora do lock: é uma escrita no socket)
+            if (++porCreditar >= JANELA_FLUXO / 2) {
+                conn.send(tag, OpCode.STREAM_CREDIT, credito(porCreditar));
+                porCreditar = 0;
+            }
+            return chunk;
+        }
+
+        // Payload do OK final (só depois de proximo() ter devolvido null)
+        public byte[] getFim() {
+            return fim;
+        }
+
+        // Abandonar o fluxo a meio: o servidor é avisado (CANCEL_STREAM) e deixa de produzir;
+        // os frames que ainda chegarem são descartados até ao OK que fecha o fluxo
+        @Override
+        public void close() {
+            boolean avisar;
+            lock.lock();
+            try {
+                if (terminado) return;
+                terminado = true;
+                e.cancelado = true;
+                e.fila.clear();
+                avisar = waiters.get(tag) == e && exception == null; // Ainda não chegou o fim
+            } finally {
+                lock.unlock();
+            }
+            if (avisar) {
+                try {
+                    conn.send(tag, OpCode.CANCEL_STREAM, new byte[0]);
+                } catch (IOException ignored) {
+                    // A ligação caiu: o servidor descarta o fluxo na mesma
+                }
+            }
+        }
+    }
+
+    /**
+     * Envia um pedido sem esperar pela resposta: a CompletableFuture é completada pela
+     * thread de leitura com o payload da resposta (OK ou ERROR), ou falha se a ligação cair.
+     * Permite ter muitos pedidos em curso na mesma ligação sem uma thread por pedido.
+     * As continuações não assíncronas correm na thread de leitura: não devem bloquear.
+     */
+    public CompletableFuture<byte[]> sendAsync(int opCode, byte[] data) {
+        CompletableFuture<byte[]> resposta = new CompletableFuture<>();
+        int tag;
 
         lock.lock();
         try {
-            // 4. Esperar pela resposta (Ciclo contra Spurious Wakeups)
-            while (e.frame == null && exception == null) {
-                e.cond.await();
+            if (exception != null) {
+                resposta.completeExceptionally(exception);
+                return resposta;
             }
+            // 1. Gerar Tag única (pode ser um contador global)
+            tag = getNextTag();
 
-            if (exception != null) throw exception;
-
-            // 5. Limpar e retornar
-            waiters.remove(tag);
-            return e.frame.payload;
+            // 2. Criar entrada no mapa
+            Entry e = new Entry(null);
+            e.resposta = resposta;
+            waiters.put(tag, e);
         } finally {
             lock.unlock();
         }
+
+        // 3. Enviar o frame (usando o lock de escrita da TaggedConnection)
+        try {
+            conn.send(tag, opCode, data);
+        } catch (IOException ex) {
+            lock.lock();
+            try {
+                waiters.remove(tag);
+            } finally {
+                lock.unlock();
+            }
+            resposta.completeExceptionally(ex);
+        }
+        return resposta;
+    }
+
+    // Versão bloqueante de sendAsync
+    public byte[] send(int opCode, byte[] data) throws IOException, InterruptedException {
+        try {
+            return sendAsync(opCode, data).get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) throw (IOException) e.getCause();
+            throw new IOException(e.getCause());
+        }
     }
 
 
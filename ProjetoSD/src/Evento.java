@@ -20,6 +20,11 @@ public class Evento {
 
     // Métodos para facilitar a escrita/leitura binária no disco
     public void serialize(DataOutputStream out) throws IOException {
+        escrever(out, quantidade, preco, timestamp);
+    }
+
+    // Versão "sem objeto": usada pelo armazenamento colunar (SerieProduto)
+    public static void escrever(DataOutputStream out, int quantidade, double preco, long timestamp) throws IOException {
         out.writeInt(quantidade);
         out.writeDouble(preco);
         out.writeLong(timestamp);
@@ -0,0 +1,318 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+/**
+ * Formato em disco de um dia (dia_N.bin) e leitura através de um mapeamento em memória.
+ *
+ * Layout:
+ *   [MAGICO(4)][VERSAO(4)]
+ *   [Dados] por produto, blocos comprimidos com CRC (ver CodecEventos)
+ *   [Sketches] por produto, sketch de quantis dos preços (ver SketchPrecos)
+ *   [Baldes] por produto, agregados por minuto do dia (ver BaldesMinuto)
+ *   [Diretório] entradas ordenadas por hash do nome:
+ *       Hash(4) NumEventos(4) OffsetNome(8) OffsetDados(8)
+ *       + resumo do produto: Qtd(8) Volume(8) PrecoMax(8) PrecoMin(8)
+ *       + OffsetSketch(8) OffsetBaldes(8)
+ *   [Nomes] writeUTF de cada produto
+ *   [Rodapé] OffsetDiretorio(8) NumProdutos(4) MAGICO(4)
+ *
+ * O diretório permite procurar um produto por pesquisa binária sem tocar nos dados dos outros,
+ * e como guarda o resumo (Stats) as consultas de agregação nunca leem eventos.
+ * Os nomes dos produtos são escritos uma única vez por ficheiro, no diretório.
+ *
+ * Os ficheiros do formato original (sem cabeçalho, escritos com Evento.serialize) são
+ * convertidos uma vez para este formato na primeira abertura, para não se perder o histórico.
+ */
+public class FicheiroDia {
+    private static final int MAGICO = 0x54534442; // "TSDB"
+    private static final int VERSAO = 5;
+    private static final int BYTES_ENTRADA = 4 + 4 + 8 + 8 + 4 * 8 + 8 + 8;
+    private static final int BYTES_RODAPE = 8 + 4 + 4;
+    private static final int BYTES_EVENTO_ORIGINAL = 4 + 8 + 8;
+
+    private final ByteBuffer buffer;
+    private final int offsetDiretorio;
+    private final int numProdutos;
+
+    private FicheiroDia(ByteBuffer buffer, int offsetDiretorio, int numProdutos) {
+        this.buffer = buffer;
+        this.offsetDiretorio = offsetDiretorio;
+        this.numProdutos = numProdutos;
+    }
+
+    public int getNumProdutos() { return numProdutos; }
+
+    // --- ESCRITA ---
+
+    /**
+     * Escreve o dia num ficheiro temporário, força-o para disco e só depois o renomeia
+     * atomicamente para o nome final: quem abre dia_N.bin nunca vê um ficheiro a meio.
+     */
+    public static void escrever(File f, Map<String, SerieProduto> eventosByProduct, Map<String, Stats> resumos,
+                                Map<String, SketchPrecos> sketches) throws IOException {
+        int n = eventosByProduct.size();
+        String[] nomes = new String[n];
+        long[] offsetsDados = new long[n];
+        long[] offsetsSketch = new long[n];
+        long[] offsetsBaldes = new long[n];
+        int[] tamanhos = new int[n];
+
+        File tmp = new File(f.getPath() + ".tmp");
+        FileOutputStream fos = new FileOutputStream(tmp);
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos))) {
+            out.writeInt(MAGICO);
+            out.writeInt(VERSAO);
+
+            // 1. Dados de cada produto, em blocos comprimidos
+            int i = 0;
+            for (Map.Entry<String, SerieProduto> entry : eventosByProduct.entrySet()) {
+                SerieProduto serie = entry.getValue();
+                nomes[i] = entry.getKey();
+                offsetsDados[i] = out.size();
+                tamanhos[i] = serie.tamanho();
+                CodecEventos.codificar(serie, out);
+                i++;
+            }
+
+            // 2. Sketches de preços (um produto sem vendas leva um sketch vazio)
+            for (int k = 0; k < n; k++) {
+                offsetsSketch[k] = out.size();
+                SketchPrecos sk = sketches.get(nomes[k]);
+                (sk != null ? sk : new SketchPrecos()).escrever(out);
+            }
+
+            // 3. Baldes por minuto (construídos à chegada dos eventos; recalculados se faltarem)
+            for (int k = 0; k < n; k++) {
+                offsetsBaldes[k] = out.size();
+                SerieProduto serie = eventosByProduct.get(nomes[k]);
+                BaldesMinuto b = serie.getBaldes() != null ? serie.getBaldes() : BaldesMinuto.calcular(serie);
+                (b != null ? b : new BaldesMinuto()).escrever(out);
+            }
+
+            // 4. Diretório ordenado por hash (a ordem dos nomes acompanha a das entradas)
+            Integer[] ordem = new Integer[n];
+            for (int k = 0; k < n; k++) ordem[k] = k;
+            Arrays.sort(ordem, Comparator.comparingInt(k -> nomes[k].hashCode()));
+
+            long offsetDiretorio = out.size();
+            long offsetNome = offsetDiretorio + (long) n * BYTES_ENTRADA;
+            for (int k : ordem) {
+                out.writeInt(nomes[k].hashCode());
+                out.writeInt(tamanhos[k]);
+                out.writeLong(offsetNome);
+                out.writeLong(offsetsDados[k]);
+
+                Stats s = resumos.get(nomes[k]);
+                if (s == null) s = new Stats(0, 0, 0, 0, 0); // Produto sem vendas
+                out.writeLong(s.getQuantidadeTotal());
+                out.writeDouble(s.getVolumeTotal());
+                out.writeDouble(s.getPrecoMaximo());
+                out.writeDouble(s.getPrecoMinimo());
+                out.writeLong(offsetsSketch[k]);
+                out.writeLong(offsetsBaldes[k]);
+
+                offsetNome += bytesUTF(nomes[k]);
+            }
+
+            // 5. Nomes
+            for (int k : ordem) out.writeUTF(nomes[k]);
+
+            // 6. Rodapé
+            out.writeLong(offsetDiretorio);
+            out.writeInt(n);
+            out.writeInt(MAGICO);
+
+            out.flush();
+            fos.getFD().sync();
+        }
+        Files.move(tmp.toPath(), f.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    // Tamanho exato que o writeUTF vai ocupar (2 bytes de comprimento + UTF-8 modificado)
+    private static int bytesUTF(String s) {
+        int bytes = 2;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c >= 0x0001 && c <= 0x007F) bytes += 1;
+            else if (c <= 0x07FF) bytes += 2;
+            else bytes += 3;
+        }
+        return bytes;
+    }
+
+    // --- LEITURA ---
+
+    /**
+     * Mapeia o ficheiro e valida só o cabeçalho e o rodapé.
+     * Nada do diretório ou dos dados é lido aqui: as páginas são trazidas a pedido.
+     */
+    public static FicheiroDia abrir(File f) throws IOException {
+        MappedByteBuffer buffer;
+        try (FileChannel canal = FileChannel.open(f.toPath(), StandardOpenOption.READ)) {
+            // O mapeamento continua válido depois de fechar o canal
+            buffer = canal.map(FileChannel.MapMode.READ_ONLY, 0, canal.size());
+        }
+
+        int tamanho = buffer.capacity();
+        if (tamanho >= 4 && buffer.getInt(0) != MAGICO) {
+            // Sem cabeçalho: ficheiro do formato original, convertido uma vez e aberto de novo
+            converterFormatoOriginal(f);
+            return abrir(f);
+        }
+        if (tamanho < 8 + BYTES_RODAPE || buffer.getInt(tamanho - 4) != MAGICO) {
+            throw new IOException("Ficheiro " + f.getName() + " corrompido ou em formato desconhecido.");
+        }
+        int versao = buffer.getInt(4);
+        if (versao != VERSAO) {
+            throw new IOException("Versão não suportada em " + f.getName() + ": " + versao);
+        }
+
+        int offsetDiretorio = (int) buffer.getLong(tamanho - BYTES_RODAPE);
+        int numProdutos = buffer.getInt(tamanho - BYTES_RODAPE + 8);
+        return new FicheiroDia(buffer, offsetDiretorio, numProdutos);
+    }
+
+    /**
+     * Formato original: NumProdutos(4) e por produto Nome(UTF) N(4) N x [Qtd(4) Preco(8) Timestamp(8)].
+     * Lê o ficheiro inteiro (tem de terminar exatamente no último evento), calcula os resumos,
+     * sketches e baldes, e reescreve-o no formato atual (com a mesma troca atómica de escrever).
+     */
+    private static void converterFormatoOriginal(File f) throws IOException {
+        long tamanho = f.length();
+        Map<String, SerieProduto> series = new HashMap<>();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(f)))) {
+            int numProdutos = in.readInt();
+            if (numProdutos < 0) throw new EOFException();
+            for (int i = 0; i < numProdutos; i++) {
+                String nome = in.readUTF();
+                int n = in.readInt();
+                if (n < 0 || n > tamanho / BYTES_EVENTO_ORIGINAL) throw new EOFException();
+                SerieProduto serie = new SerieProduto(n);
+                for (int j = 0; j < n; j++) {
+                    serie.adicionar(in.readInt(), in.readDouble(), in.readLong());
+                }
+                series.put(nome, serie);
+            }
+            if (in.read() != -1) throw new EOFException(); // Sobram bytes: não é este formato
+        } catch (EOFException e) {
+            throw new IOException("Ficheiro " + f.getName() + " corrompido ou em formato desconhecido.");
+        }
+
+        Map<String, Stats> resumos = new HashMap<>();
+        Map<String, SketchPrecos> sketches = new HashMap<>();
+        for (Map.Entry<String, SerieProduto> e : series.entrySet()) {
+            Stats s = Stats.calcular(e.getValue());
+            if (s != null) resumos.put(e.getKey(), s);
+            SketchPrecos sk = SketchPrecos.calcular(e.getValue());
+            if (sk != null) sketches.put(e.getKey(), sk);
+        }
+        escrever(f, series, resumos, sketches);
+        System.out.println("[ARRANQUE] " + f.getName() + " convertido do formato original ("
+                + series.size() + " produtos).");
+    }
+
+    /**
+     * Procura um produto no diretório e descodifica só os blocos desse produto,
+     * ou devolve null se o produto não vendeu neste dia.
+     */
+    public SerieProduto procurar(String produto) throws IOException {
+        return procurar(produto, Long.MIN_VALUE, Long.MAX_VALUE);
+    }
+
+    // Só os blocos do produto que tocam no intervalo de tempo [tsDesde, tsAte)
+    public SerieProduto procurar(String produto, long tsDesde, long tsAte) throws IOException {
+        int i = procurarEntrada(produto);
+        if (i < 0) return null;
+        int pos = posEntrada(i);
+        int numEventos = buffer.getInt(pos + 4);
+        int offsetDados = (int) buffer.getLong(pos + 16);
+        return CodecEventos.descodificar(buffer, offsetDados, numEventos, tsDesde, tsAte);
+    }
+
+    // Lê o resumo do produto diretamente da entrada do diretório (nenhum evento é lido)
+    public Stats resumo(String produto) throws IOException {
+        int i = procurarEntrada(produto);
+        return i < 0 ? null : resumoEntrada(i);
+    }
+
+    // Sketch de quantis dos preços do produto, ou null se não vendeu neste dia
+    public SketchPrecos sketch(String produto) throws IOException {
+        int i = procurarEntrada(produto);
+        if (i < 0) return null;
+        int pos = posEntrada(i);
+        if (buffer.getInt(pos + 4) == 0) return null;
+        return SketchPrecos.ler(buffer, (int) buffer.getLong(pos + 56));
+    }
+
+    // Agregado do produto nos minutos [minutoInicio, minutoFim), lendo só os baldes do intervalo
+    public Stats resumoIntervalo(String produto, int minutoInicio, int minutoFim) throws IOException {
+        int i = procurarEntrada(produto);
+        if (i < 0) return null;
+        int pos = posEntrada(i);
+        if (buffer.getInt(pos + 4) == 0) return null;
+        return BaldesMinuto.agregar(buffer, (int) buffer.getLong(pos + 64), minutoInicio, minutoFim);
+    }
+
+    // Resumos de todos os produtos do dia, lidos só do diretório (usado para construir o índice no arranque)
+    public Map<String, Stats> resumos() throws IOException {
+        Map<String, Stats> todos = new HashMap<>(numProdutos);
+        for (int i = 0; i < numProdutos; i++) {
+            Stats s = resumoEntrada(i);
+            if (s != null) todos.put(nomeEntrada(i), s);
+        }
+        return todos;
+    }
+
+    private Stats resumoEntrada(int i) {
+        int pos = posEntrada(i);
+        int numEventos = buffer.getInt(pos + 4);
+        if (numEventos == 0) return null;
+        return new Stats(buffer.getLong(pos + 24), buffer.getDouble(pos + 32),
+                buffer.getDouble(pos + 40), buffer.getDouble(pos + 48), numEventos);
+    }
+
+    // Pesquisa binária pelo hash do nome; devolve o índice da entrada ou -1
+    private int procurarEntrada(String produto) throws IOException {
+        int hash = produto.hashCode();
+
+        // Primeira entrada com hash >= procurado
+        int lo = 0, hi = numProdutos;
+        while (lo < hi) {
+            int meio = (lo + hi) >>> 1;
+            if (hashEntrada(meio) < hash) lo = meio + 1;
+            else hi = meio;
+        }
+
+        // Colisões de hash: compara os nomes das entradas com o mesmo hash
+        for (int i = lo; i < numProdutos && hashEntrada(i) == hash; i++) {
+            if (produto.equals(nomeEntrada(i))) return i;
+        }
+        return -1;
+    }
+
+    private int posEntrada(int i) {
+        return offsetDiretorio + i * BYTES_ENTRADA;
+    }
+
+    private int hashEntrada(int i) {
+        return buffer.getInt(posEntrada(i));
+    }
+
+    private String nomeEntrada(int i) throws IOException {
+        return lerUTF((int) buffer.getLong(posEntrada(i) + 8));
+    }
+
+    // Descodifica uma string escrita com writeUTF (2 bytes de tamanho + UTF-8 modificado)
+    private String lerUTF(int pos) throws IOException {
+        int bytesNome = buffer.getShort(pos) & 0xFFFF;
+        byte[] bytes = new byte[2 + bytesNome];
+        buffer.get(pos, bytes);
+        return new DataInputStream(new ByteArrayInputStream(bytes)).readUTF();
+    }
+}
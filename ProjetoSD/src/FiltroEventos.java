@@ -0,0 +1,146 @@
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * Critérios opcionais de um FILTER_EVENTS: intervalo de tempo [tsDesde, tsAte)
+ * e limites (inclusivos) de quantidade e de preço. Sem critérios, aceita tudo.
+ *
+ * Como os eventos de cada produto estão por ordem de timestamp, o intervalo de tempo
+ * é resolvido por pesquisa binária (e, em disco, saltando os blocos fora do intervalo);
+ * os limites de quantidade/preço são aplicados só às linhas desse intervalo.
+ */
+public class FiltroEventos {
+    private static final int COM_TEMPO = 1;
+    private static final int COM_QUANTIDADE = 2;
+    private static final int COM_PRECO = 4;
+
+    private long tsDesde = Long.MIN_VALUE;
+    private long tsAte = Long.MAX_VALUE;
+    private int qtdMin = Integer.MIN_VALUE;
+    private int qtdMax = Integer.MAX_VALUE;
+    private double precoMin = Double.NEGATIVE_INFINITY;
+    private double precoMax = Double.POSITIVE_INFINITY;
+    private int criterios = 0;
+
+    public static FiltroEventos todos() {
+        return new FiltroEventos();
+    }
+
+    public FiltroEventos entre(long tsDesde, long tsAte) {
+        this.tsDesde = tsDesde;
+        this.tsAte = tsAte;
+        this.criterios |= COM_TEMPO;
+        return this;
+    }
+
+    public FiltroEventos quantidade(int min, int max) {
+        this.qtdMin = min;
+        this.qtdMax = max;
+        this.criterios |= COM_QUANTIDADE;
+        return this;
+    }
+
+    public FiltroEventos preco(double min, double max) {
+        this.precoMin = min;
+        this.precoMax = max;
+        this.criterios |= COM_PRECO;
+        return this;
+    }
+
+    public boolean temIntervaloTempo() { return (criterios & COM_TEMPO) != 0; }
+    public long getTsDesde() { return tsDesde; }
+    public long getTsAte() { return tsAte; }
+
+    private boolean temLimitesValores() {
+        return (criterios & (COM_QUANTIDADE | COM_PRECO)) != 0;
+    }
+
+    public boolean aceita(int qtd, double preco) {
+        return qtd >= qtdMin && qtd <= qtdMax && preco >= precoMin && preco <= precoMax;
+    }
+
+    /**
+     * Aplica o filtro a uma série ordenada por timestamp. O intervalo de tempo não copia nada
+     * (vista sobre [inicio, fim)); só os limites de valores criam uma série nova com as linhas aceites.
+     * Devolve null se nenhum evento passar.
+     */
+    public VistaEventos aplicar(VistaEventos serie) {
+        if (serie == null) return null;
+        int inicio = 0, fim = serie.tamanho();
+        if (temIntervaloTempo()) {
+            inicio = primeiraPosicao(serie, tsDesde);
+            fim = primeiraPosicao(serie, tsAte);
+        }
+        if (inicio >= fim) return null;
+
+        if (!temLimitesValores()) {
+            return inicio == 0 && fim == serie.tamanho() ? serie : new Intervalo(serie, inicio, fim);
+        }
+
+        SerieProduto aceites = new SerieProduto();
+        for (int i = inicio; i < fim; i++) {
+            if (aceita(serie.getQuantidade(i), serie.getPreco(i))) {
+                aceites.adicionar(serie.getQuantidade(i), serie.getPreco(i), serie.getTimestamp(i));
+            }
+        }
+        return aceites.tamanho() == 0 ? null : aceites;
+    }
+
+    // Primeira posição com timestamp >= ts
+    private static int primeiraPosicao(VistaEventos serie, long ts) {
+        int lo = 0, hi = serie.tamanho();
+        while (lo < hi) {
+            int meio = (lo + hi) >>> 1;
+            if (serie.getTimestamp(meio) < ts) lo = meio + 1;
+            else hi = meio;
+        }
+        return lo;
+    }
+
+    // Vista sobre um troço contíguo de outra série (sem cópia)
+    private static class Intervalo implements VistaEventos {
+        private final VistaEventos base;
+        private final int inicio;
+        private final int tamanho;
+
+        Intervalo(VistaEventos base, int inicio, int fim) {
+            this.base = base;
+            this.inicio = inicio;
+            this.tamanho = fim - inicio;
+        }
+
+        @Override public int tamanho() { return tamanho; }
+        @Override public int getQuantidade(int i) { return base.getQuantidade(inicio + i); }
+        @Override public double getPreco(int i) { return base.getPreco(inicio + i); }
+        @Override public long getTimestamp(int i) { return base.getTimestamp(inicio + i); }
+    }
+
+    // --- PROTOCOLO ---
+    // Criterios(1) e depois só os campos presentes: [TsDesde(8) TsAte(8)] [QtdMin(4) QtdMax(4)] [PrecoMin(8) PrecoMax(8)]
+
+    public void serialize(DataOutputStream out) throws IOException {
+        out.writeByte(criterios);
+        if ((criterios & COM_TEMPO) != 0) {
+            out.writeLong(tsDesde);
+            out.writeLong(tsAte);
+        }
+        if ((criterios & COM_QUANTIDADE) != 0) {
+            out.writeInt(qtdMin);
+            out.writeInt(qtdMax);
+        }
+        if ((criterios & COM_PRECO) != 0) {
+            out.writeDouble(precoMin);
+            out.writeDouble(precoMax);
+        }
+    }
+
+    public static FiltroEventos deserialize(DataInputStream in) throws IOException {
+        FiltroEventos f = new FiltroEventos();
+        int criterios = in.readUnsignedByte();
+        if ((criterios & COM_TEMPO) != 0) f.entre(in.readLong(), in.readLong());
+        if ((criterios & COM_QUANTIDADE) != 0) f.quantidade(in.readInt(), in.readInt());
+        if ((criterios & COM_PRECO) != 0) f.preco(in.readDouble(), in.readDouble());
+        return f;
+    }
+}
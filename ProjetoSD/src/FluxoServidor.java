@@ -0,0 +1,13 @@
+import java.io.IOException;
+
+/**
+ * Resposta em fluxo do lado do servidor. Os CHUNKs são produzidos a pedido, à medida que o
+ * cliente concede crédito (STREAM_CREDIT), em vez de serem todos enviados de uma vez.
+ */
+public interface FluxoServidor {
+    // Payload do próximo CHUNK, ou null quando já não há mais
+    byte[] proximoChunk() throws IOException;
+
+    // Payload do OK que fecha o fluxo (depois de proximoChunk() ter devolvido null)
+    byte[] fim() throws IOException;
+}
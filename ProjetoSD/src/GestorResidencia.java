@@ -0,0 +1,231 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Decide que dias do histórico ficam com dados no heap, com um orçamento em bytes
+ * (cada SerieDia mede o seu próprio tamanho) em vez de um número fixo de dias.
+ *
+ * Política 2Q, resistente a varrimentos:
+ *  - A1in: FIFO de "experiência" para dias acedidos pela primeira vez;
+ *  - Am:   LRU com os dias que voltaram a ser pedidos depois de saírem da A1in;
+ *  - A1out: só IDs (fantasmas) dos dias expulsos da A1in, para reconhecer a segunda visita
+ *           (tantos quantos os dias residentes, com um mínimo de MIN_FANTASMAS).
+ * Uma consulta com d=D toca em todos os dias uma única vez: passam só pela A1in
+ * e não empurram para fora o conjunto de trabalho que está na Am.
+ *
+ * Os dias expulsos só são descarregados depois de largar o lock do gestor: descarregar
+ * espera pelo lock de escrita do dia, e uma leitura longa nesse dia não pode parar os outros.
+ */
+public class GestorResidencia {
+    private static final double FRACAO_A1IN = 0.25;
+    private static final int MIN_FANTASMAS = 8;
+
+    private final long orcamentoBytes;
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private final LinkedHashMap<Integer, SerieDia> a1in = new LinkedHashMap<>();
+    private final LinkedHashMap<Integer, SerieDia> am = new LinkedHashMap<>(16, 0.75f, true); // Ordem de acesso
+    private final LinkedHashMap<Integer, Boolean> a1out = new LinkedHashMap<>();
+    private final Map<Integer, Long> tamanhos = new HashMap<>();
+    // Dias admitidos na mudança de dia que ainda nenhuma consulta pediu
+    private final Set<Integer> naoReferenciados = new HashSet<>();
+
+    private long bytesA1in = 0;
+    private long bytesAm = 0;
+
+    // Contadores de observação
+    private long acertos = 0;
+    private long falhas = 0;
+    private long expulsoes = 0;
+
+    public GestorResidencia(long orcamentoBytes) {
+        this.orcamentoBytes = orcamentoBytes;
+    }
+
+    /**
+     * Regista um acesso ao dia (que o chamador já carregou) e expulsa outros dias
+     * se o orçamento for ultrapassado.
+     */
+    public void acesso(SerieDia serie) {
+        int id = serie.getDiaID();
+        List<SerieDia> expulsos = new ArrayList<>();
+        lock.lock();
+        try {
+            if (am.containsKey(id)) {
+                am.get(id); // Passa para o fim da LRU
+                acertos++;
+            } else if (a1in.containsKey(id)) {
+                acertos++; // Na A1in um acerto não promove (é isso que trava os varrimentos)
+                naoReferenciados.remove(id);
+            } else {
+                falhas++;
+                long bytes = serie.tamanhoEmBytes();
+                tamanhos.put(id, bytes);
+                if (a1out.remove(id) != null) {
+                    // Segunda visita depois de ter sido expulso: é um dia "quente"
+                    am.put(id, serie);
+                    bytesAm += bytes;
+                } else {
+                    a1in.put(id, serie);
+                    bytesA1in += bytes;
+                }
+            }
+            expulsarSeNecessario(id, expulsos);
+        } finally {
+            lock.unlock();
+        }
+        descarregar(expulsos);
+    }
+
+    /**
+     * O próprio dia voltou a carregar-se do disco (foi expulso entre o garantirSerieNaMemoria
+     * da TSDB e a leitura): conta como acesso e o tamanho é medido de novo, para a memória
+     * entrar no orçamento e o dia poder voltar a ser expulso.
+     */
+    public void recarregado(SerieDia serie) {
+        acesso(serie);
+        atualizarTamanho(serie);
+    }
+
+    /**
+     * Admite o dia acabado de fechar sem contar como acesso: se sair sem nunca ter
+     * sido consultado, não deixa fantasma (senão o primeiro varrimento promovia-o para a Am).
+     */
+    public void admitir(SerieDia serie) {
+        int id = serie.getDiaID();
+        List<SerieDia> expulsos = new ArrayList<>();
+        lock.lock();
+        try {
+            if (tamanhos.containsKey(id)) return;
+            long bytes = serie.tamanhoEmBytes();
+            tamanhos.put(id, bytes);
+            a1in.put(id, serie);
+            bytesA1in += bytes;
+            naoReferenciados.add(id);
+            expulsarSeNecessario(id, expulsos);
+        } finally {
+            lock.unlock();
+        }
+        descarregar(expulsos);
+    }
+
+    // O tamanho de um dia muda (ex.: produtos descodificados para um filtro)
+    public void atualizarTamanho(SerieDia serie) {
+        int id = serie.getDiaID();
+        List<SerieDia> expulsos = new ArrayList<>();
+        lock.lock();
+        try {
+            Long antigo = tamanhos.get(id);
+            if (antigo == null) return;
+            long novo = serie.tamanhoEmBytes();
+            tamanhos.put(id, novo);
+            if (am.containsKey(id)) bytesAm += novo - antigo;
+            else bytesA1in += novo - antigo;
+            expulsarSeNecessario(id, expulsos);
+        } finally {
+            lock.unlock();
+        }
+        descarregar(expulsos);
+    }
+
+    // Volta a aplicar o orçamento (ex.: depois de um dia ser gravado e deixar de estar "preso")
+    public void ajustar() {
+        List<SerieDia> expulsos = new ArrayList<>();
+        lock.lock();
+        try {
+            expulsarSeNecessario(-1, expulsos);
+        } finally {
+            lock.unlock();
+        }
+        descarregar(expulsos);
+    }
+
+    // Dia que saiu da janela de retenção
+    public void remover(int diaID) {
+        lock.lock();
+        try {
+            Long bytes = tamanhos.remove(diaID);
+            if (bytes == null) return;
+            if (am.remove(diaID) != null) bytesAm -= bytes;
+            if (a1in.remove(diaID) != null) bytesA1in -= bytes;
+            a1out.remove(diaID);
+            naoReferenciados.remove(diaID);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Chamado com o lock adquirido; 'protegido' é o dia acabado de pedir (nunca é expulso).
+    // Os dias que saem vão para 'expulsos', para serem descarregados já fora do lock
+    private void expulsarSeNecessario(int protegido, List<SerieDia> expulsos) {
+        while (bytesA1in + bytesAm > orcamentoBytes) {
+            // A A1in tem direito a uma fração do orçamento; acima disso é ela que cede
+            boolean daA1in = bytesA1in > orcamentoBytes * FRACAO_A1IN || am.isEmpty();
+            boolean expulsou = daA1in
+                    ? expulsarDe(a1in, true, protegido, expulsos) || expulsarDe(am, false, protegido, expulsos)
+                    : expulsarDe(am, false, protegido, expulsos) || expulsarDe(a1in, true, protegido, expulsos);
+            if (!expulsou) return; // Só restam dias presos (ainda não gravados) ou o protegido
+        }
+    }
+
+    private boolean expulsarDe(LinkedHashMap<Integer, SerieDia> fila, boolean eA1in, int protegido,
+                               List<SerieDia> expulsos) {
+        Iterator<Map.Entry<Integer, SerieDia>> it = fila.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Integer, SerieDia> entry = it.next();
+            SerieDia serie = entry.getValue();
+            if (entry.getKey() == protegido || !serie.estaPersistido()) continue;
+
+            it.remove();
+            long bytes = tamanhos.remove(entry.getKey());
+            if (eA1in) {
+                bytesA1in -= bytes;
+                if (!naoReferenciados.remove(entry.getKey())) {
+                    a1out.put(entry.getKey(), Boolean.TRUE);
+                    int maxFantasmas = Math.max(MIN_FANTASMAS, a1in.size() + am.size());
+                    while (a1out.size() > maxFantasmas) {
+                        a1out.remove(a1out.keySet().iterator().next());
+                    }
+                }
+            } else {
+                bytesAm -= bytes;
+            }
+            expulsos.add(serie);
+            expulsoes++;
+            return true;
+        }
+        return false;
+    }
+
+    // Sem o lock do gestor
+    private void descarregar(List<SerieDia> expulsos) {
+        for (SerieDia serie : expulsos) {
+            serie.descarregarEventos();
+            // Se voltou a entrar antes de sair da memória, o tamanho registado era o de carregado
+            atualizarTamanho(serie);
+        }
+    }
+
+    @Override
+    public String toString() {
+        lock.lock();
+        try {
+            return String.format("Memória: %d/%d KB (A1in=%d dias, Am=%d dias) | acertos=%d falhas=%d expulsões=%d",
+                    (bytesA1in + bytesAm) / 1024, orcamentoBytes / 1024, a1in.size(), am.size(),
+                    acertos, falhas, expulsoes);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getAcertos() { lock.lock(); try { return acertos; } finally { lock.unlock(); } }
+    public long getFalhas() { lock.lock(); try { return falhas; } finally { lock.unlock(); } }
+    public long getExpulsoes() { lock.lock(); try { return expulsoes; } finally { lock.unlock(); } }
+}
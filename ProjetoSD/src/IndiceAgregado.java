@@ -0,0 +1,237 @@
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Índice dos resumos de cada produto ao longo dos dias retidos, para que as consultas
+ * "últimos d dias" não tenham de juntar d objetos Stats nem tocar nas SerieDia.
+ *
+ * Como a janela é sempre um sufixo (do dia mais recente para trás), por produto guardamos:
+ *  - somas acumuladas (quantidade, volume, nº de eventos): um sufixo = total - acumulado antes dele;
+ *  - filas monótonas de máximo e mínimo: o máximo do sufixo é o primeiro elemento da fila
+ *    com diaID dentro da janela (pesquisa binária).
+ * Na mudança de dia só se acrescenta o dia novo no fim e se retiram os expirados do início.
+ */
+public class IndiceAgregado {
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private final Map<String, Historia> produtos = new HashMap<>();
+
+    private int ultimoDia = 0;                        // Último dia já indexado
+    private int primeiroValido = Integer.MIN_VALUE;   // Dias abaixo deste já foram retirados
+    private int lacunaAte = Integer.MIN_VALUE;        // Dias <= este podem faltar no índice
+
+    /**
+     * Acrescenta os resumos de um dia fechado. Os dias têm de chegar por ordem, um a um
+     * (diaID == ultimoDia + 1). Se não chegarem (um dia falhou na persistência, ou não foi
+     * recuperado do disco), as somas já não incluem os dias em falta: as janelas que os
+     * contêm deixam de estar cobertas e a TSDB responde pelas SerieDia.
+     */
+    public void adicionarDia(int diaID, Map<String, Stats> resumos) {
+        lock.writeLock().lock();
+        try {
+            if (diaID <= ultimoDia) {
+                // Atrasado ou repetido: não dá para o pôr no meio das somas
+                lacunaAte = Math.max(lacunaAte, diaID);
+                return;
+            }
+            if (diaID != ultimoDia + 1) lacunaAte = Math.max(lacunaAte, diaID - 1); // Saltou dias
+            for (Map.Entry<String, Stats> e : resumos.entrySet()) {
+                produtos.computeIfAbsent(e.getKey(), k -> new Historia()).acrescentar(diaID, e.getValue());
+            }
+            ultimoDia = diaID;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // Retira todos os dias com ID <= diaID (saíram da janela de retenção)
+    public void expirarAte(int diaID) {
+        lock.writeLock().lock();
+        try {
+            primeiroValido = Math.max(primeiroValido, diaID + 1);
+            Iterator<Historia> it = produtos.values().iterator();
+            while (it.hasNext()) {
+                Historia h = it.next();
+                h.retirarAte(diaID);
+                if (h.vazia()) it.remove(); // Produto sem vendas em nenhum dia retido
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // Chamado com o lock adquirido
+    private boolean cobre(int desde, int ate) {
+        return ate == ultimoDia && desde >= primeiroValido && desde > lacunaAte;
+    }
+
+    /**
+     * Resumo do produto nos dias [desde, ate].
+     * Devolve 'false' em 'coberto' (e null) se o índice ainda não tem o dia 'ate'
+     * (dia fechado à espera da persistência), já retirou dias do intervalo ou lhe falta algum:
+     * nesse caso a TSDB responde pelas SerieDia.
+     */
+    public Resultado consultar(String produto, int desde, int ate) {
+        lock.readLock().lock();
+        try {
+            if (!cobre(desde, ate)) return Resultado.NAO_COBERTO;
+            Historia h = produtos.get(produto);
+            return new Resultado(true, h == null ? null : h.sufixo(desde));
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Versão em lote de consultar: um só lock para todos os produtos.
+     * Devolve null se o intervalo não estiver coberto; produtos sem vendas ficam de fora.
+     */
+    public Map<String, Stats> consultarLote(Collection<String> nomes, int desde, int ate) {
+        lock.readLock().lock();
+        try {
+            if (!cobre(desde, ate)) return null;
+            Map<String, Stats> res = new HashMap<>();
+            for (String nome : nomes) {
+                Historia h = produtos.get(nome);
+                Stats s = h == null ? null : h.sufixo(desde);
+                if (s != null) res.put(nome, s);
+            }
+            return res;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // Resumo de todos os produtos nos dias [desde, ate] (TOP_K), ou null se não estiver coberto
+    public Map<String, Stats> consultarTodos(int desde, int ate) {
+        lock.readLock().lock();
+        try {
+            if (!cobre(desde, ate)) return null;
+            Map<String, Stats> res = new HashMap<>(produtos.size());
+            for (Map.Entry<String, Historia> e : produtos.entrySet()) {
+                Stats s = e.getValue().sufixo(desde);
+                if (s != null) res.put(e.getKey(), s);
+            }
+            return res;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public int getUltimoDia() {
+        lock.readLock().lock();
+        try {
+            return ultimoDia;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public static class Resultado {
+        static final Resultado NAO_COBERTO = new Resultado(false, null);
+
+        public final boolean coberto;
+        public final Stats stats; // null se o produto não vendeu no intervalo
+
+        Resultado(boolean coberto, Stats stats) {
+            this.coberto = coberto;
+            this.stats = stats;
+        }
+    }
+
+    // --- HISTÓRIA DE UM PRODUTO ---
+
+    private static class Historia {
+        // Uma posição por dia em que o produto vendeu, por ordem de diaID
+        private final List<Integer> dias = new ArrayList<>();
+        private final List<long[]> acumulado = new ArrayList<>();     // {quantidade, eventos} até este dia (inclusive)
+        private final List<Double> volumeAcumulado = new ArrayList<>();
+        // Totais dos dias já retirados (as somas acumuladas são absolutas)
+        private long qtdBase = 0, eventosBase = 0;
+        private double volumeBase = 0;
+
+        // Filas monótonas {diaID, preço}: máximos decrescentes e mínimos crescentes
+        private final List<double[]> maximos = new ArrayList<>();
+        private final List<double[]> minimos = new ArrayList<>();
+
+        void acrescentar(int diaID, Stats s) {
+            long[] anterior = acumulado.isEmpty() ? new long[]{qtdBase, eventosBase} : acumulado.get(acumulado.size() - 1);
+            double volAnterior = volumeAcumulado.isEmpty() ? volumeBase : volumeAcumulado.get(volumeAcumulado.size() - 1);
+
+            dias.add(diaID);
+            acumulado.add(new long[]{anterior[0] + s.getQuantidadeTotal(), anterior[1] + s.getNumEventos()});
+            volumeAcumulado.add(volAnterior + s.getVolumeTotal());
+
+            // Um dia mais recente com preço >= domina os anteriores em qualquer sufixo que os contenha
+            while (!maximos.isEmpty() && maximos.get(maximos.size() - 1)[1] <= s.getPrecoMaximo()) {
+                maximos.remove(maximos.size() - 1);
+            }
+            maximos.add(new double[]{diaID, s.getPrecoMaximo()});
+            while (!minimos.isEmpty() && minimos.get(minimos.size() - 1)[1] >= s.getPrecoMinimo()) {
+                minimos.remove(minimos.size() - 1);
+            }
+            minimos.add(new double[]{diaID, s.getPrecoMinimo()});
+        }
+
+        void retirarAte(int diaID) {
+            int n = primeiraPosicao(diaID + 1);
+            if (n > 0) {
+                qtdBase = acumulado.get(n - 1)[0];
+                eventosBase = acumulado.get(n - 1)[1];
+                volumeBase = volumeAcumulado.get(n - 1);
+                dias.subList(0, n).clear();
+                acumulado.subList(0, n).clear();
+                volumeAcumulado.subList(0, n).clear();
+            }
+            while (!maximos.isEmpty() && maximos.get(0)[0] <= diaID) maximos.remove(0);
+            while (!minimos.isEmpty() && minimos.get(0)[0] <= diaID) minimos.remove(0);
+        }
+
+        boolean vazia() {
+            return dias.isEmpty();
+        }
+
+        // Resumo dos dias com ID >= desde (até ao último), ou null se não houve vendas
+        Stats sufixo(int desde) {
+            int i = primeiraPosicao(desde);
+            int ultimo = dias.size() - 1;
+            if (i > ultimo) return null;
+
+            long qtdAntes = i == 0 ? qtdBase : acumulado.get(i - 1)[0];
+            long eventosAntes = i == 0 ? eventosBase : acumulado.get(i - 1)[1];
+            double volAntes = i == 0 ? volumeBase : volumeAcumulado.get(i - 1);
+
+            return new Stats(acumulado.get(ultimo)[0] - qtdAntes,
+                    volumeAcumulado.get(ultimo) - volAntes,
+                    primeiroNaJanela(maximos, desde),
+                    primeiroNaJanela(minimos, desde),
+                    acumulado.get(ultimo)[1] - eventosAntes);
+        }
+
+        // Primeira posição com diaID >= alvo
+        private int primeiraPosicao(int alvo) {
+            int lo = 0, hi = dias.size();
+            while (lo < hi) {
+                int meio = (lo + hi) >>> 1;
+                if (dias.get(meio) < alvo) lo = meio + 1;
+                else hi = meio;
+            }
+            return lo;
+        }
+
+        // Na fila monótona, o primeiro elemento dentro da janela é o extremo do sufixo
+        private static double primeiroNaJanela(List<double[]> fila, int desde) {
+            int lo = 0, hi = fila.size();
+            while (lo < hi) {
+                int meio = (lo + hi) >>> 1;
+                if (fila.get(meio)[0] < desde) lo = meio + 1;
+                else hi = meio;
+            }
+            return fila.get(lo)[1];
+        }
+    }
+}
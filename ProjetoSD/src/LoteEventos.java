@@ -0,0 +1,73 @@
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Conjunto de vendas enviado num só pedido ADD_EVENTS (gateways de caixas com muito tráfego).
+ * Cada venda é identificada pela sua posição no lote; é essa posição que o servidor
+ * devolve para as vendas rejeitadas.
+ *
+ * Colunar como a SerieProduto: arrays que crescem por duplicação, sem Integer/Double por venda.
+ */
+public class LoteEventos {
+    private static final int CAPACIDADE_INICIAL = 16;
+
+    private String[] produtos;
+    private int[] quantidades;
+    private double[] precos;
+    private int tamanho = 0;
+
+    public LoteEventos() {
+        this(CAPACIDADE_INICIAL);
+    }
+
+    public LoteEventos(int capacidade) {
+        int cap = Math.max(1, capacidade);
+        this.produtos = new String[cap];
+        this.quantidades = new int[cap];
+        this.precos = new double[cap];
+    }
+
+    public LoteEventos adicionar(String produto, int qtd, double preco) {
+        if (tamanho == quantidades.length) crescer();
+        produtos[tamanho] = produto;
+        quantidades[tamanho] = qtd;
+        precos[tamanho] = preco;
+        tamanho++;
+        return this;
+    }
+
+    private void crescer() {
+        int novaCap = quantidades.length * 2;
+        produtos = Arrays.copyOf(produtos, novaCap);
+        quantidades = Arrays.copyOf(quantidades, novaCap);
+        precos = Arrays.copyOf(precos, novaCap);
+    }
+
+    public int tamanho() { return tamanho; }
+    public String getProduto(int i) { return produtos[i]; }
+    public int getQuantidade(int i) { return quantidades[i]; }
+    public double getPreco(int i) { return precos[i]; }
+
+    // --- PROTOCOLO ---
+    // NumEventos(4) e por evento: Produto(UTF) Qtd(4) Preco(8)
+
+    public void serialize(DataOutputStream out) throws IOException {
+        out.writeInt(tamanho());
+        for (int i = 0; i < tamanho; i++) {
+            out.writeUTF(produtos[i]);
+            out.writeInt(quantidades[i]);
+            out.writeDouble(precos[i]);
+        }
+    }
+
+    public static LoteEventos deserialize(DataInputStream in) throws IOException {
+        int n = in.readInt();
+        LoteEventos lote = new LoteEventos(Math.min(n, 64 * 1024)); // O N vem da rede: o resto cresce se for preciso
+        for (int i = 0; i < n; i++) {
+            lote.adicionar(in.readUTF(), in.readInt(), in.readDouble());
+        }
+        return lote;
+    }
+}
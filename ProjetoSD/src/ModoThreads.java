@@ -0,0 +1,35 @@
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Tipo de thread usado para os clientes (modo bloqueante), os pedidos do ServidorNIO
+ * e a thread de leitura do Demultiplexer: --threads=plataforma | virtuais.
+ *
+ * Com threads virtuais, uma thread parada numa espera (Notificador, group commit do WAL,
+ * leitura do socket) não ocupa uma thread do sistema. Não há blocos synchronized no código:
+ * todas as esperas usam ReentrantLock/Condition, Semaphore ou CompletableFuture, que libertam
+ * a thread de suporte. Os únicos monitores são os do ConcurrentHashMap em compute/computeIfAbsent,
+ * que nunca esperam lá dentro. Para confirmar em execução: -Djdk.tracePinnedThreads=short.
+ */
+public enum ModoThreads {
+    PLATAFORMA,
+    VIRTUAIS;
+
+    public static ModoThreads parse(String s) {
+        switch (s.toLowerCase()) {
+            case "plataforma": return PLATAFORMA;
+            case "virtuais": return VIRTUAIS;
+            default: throw new IllegalArgumentException("Modo de threads desconhecido: " + s);
+        }
+    }
+
+    // Thread por arrancar, com o nome dado
+    public Thread nova(String nome, Runnable r) {
+        return this == VIRTUAIS ? Thread.ofVirtual().name(nome).unstarted(r) : new Thread(r, nome);
+    }
+
+    // Fábrica para pools: nomes prefixo-0, prefixo-1, ...
+    public ThreadFactory fabrica(String prefixo) {
+        return this == VIRTUAIS ? Thread.ofVirtual().name(prefixo + "-", 0).factory()
+                : Thread.ofPlatform().name(prefixo + "-", 0).factory();
+    }
+}
@@ -1,112 +1,134 @@
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.locks.Condition;
-import java.util.concurrent.locks.Lock;
-
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Esperas por vendas do dia corrente (vendas simultâneas e consecutivas).
+ *
+ * Não há mutex global: cada espera tem o seu próprio lock e Condition, registados
+ * em todos os produtos que lhe interessam. Uma venda só toca nas esperas do seu produto
+ * (e, se não houver nenhuma, não adquire lock algum).
+ */
 public class Notificador {
-    private final Lock lock;
-    private final Map<String, List<Condition>> interessados = new HashMap<>();
+    private final Map<String, Set<Espera>> interessados = new ConcurrentHashMap<>();
 
-    private int diaCorrente = 0;
+    private volatile int diaCorrente;
 
-    public Notificador(Lock lock) {
-        this.lock = lock;
+    public Notificador(int diaInicial) {
+        this.diaCorrente = diaInicial;
     }
 
     /**
      * Acorda apenas as threads que registaram interesse neste produto específico.
-     * Chamado pela TSDB dentro do lock de escrita do dia corrente.
+     * Chamado pela TSDB depois de o evento estar visível na série do produto.
      */
     public void notificar(String produto) {
-        List<Condition> lista = interessados.get(produto);
+        Set<Espera> lista = interessados.get(produto);
         if (lista != null) {
-            // Criamos uma cópia para evitar ConcurrentModificationException
-            // se a thread acordada remover-se da lista imediatamente
-            for (Condition c : new ArrayList<>(lista)) {
-                c.signalAll();
-            }
+            for (Espera e : lista) e.acordar();
         }
     }
 
-
-
-    // MUDANÇA 2: Método para avançar o dia
-    public void avancarDia() {
-        lock.lock();
-        try {
-            this.diaCorrente++; // Incrementamos o dia
-            // Acordamos toda a gente. Eles vão verificar o ID e perceber que já passou.
-            for (List<Condition> lista : interessados.values()) {
-                for (Condition c : lista) c.signalAll();
-            }
-        } finally {
-            lock.unlock();
+    /**
+     * O dia acabou: acorda toda a gente. Eles vão verificar o ID e perceber que já passou.
+     * Chamado pela TSDB dentro do lock de escrita do dia corrente.
+     */
+    public void avancarDia(int novoDia) {
+        this.diaCorrente = novoDia;
+        for (Set<Espera> lista : interessados.values()) {
+            for (Espera e : lista) e.acordar();
         }
     }
 
-    // (Remove o método prepararNovoDia, já não é preciso)
-
-    // MUDANÇA 3: O wait verifica se o dia ainda é o mesmo
-    public void esperarSimultaneo(String p1, String p2, int diaDoPedido, Map<String, List<Evento>> dia) throws Exception {
-        lock.lock();
-        try {
-            Condition cond = lock.newCondition();
-            registarInteresse(p1, cond);
-            registarInteresse(p2, cond);
-
-            // Enquanto for o dia certo E os produtos não existirem...
-            while (this.diaCorrente == diaDoPedido && (!dia.containsKey(p1) || !dia.containsKey(p2))) {
-                cond.await();
-            }
+    // O wait verifica se o dia ainda é o mesmo
+    public void esperarSimultaneo(String p1, String p2, int diaDoPedido, Map<String, SerieProduto> dia) throws Exception {
+        esperar(List.of(p1, p2), diaDoPedido, () -> temVendas(dia, p1) && temVendas(dia, p2));
 
-            removerInteresse(p1, cond);
-            removerInteresse(p2, cond);
-
-            // Se o loop terminou mas ainda faltam produtos, foi porque o dia mudou!
-            if (!dia.containsKey(p1) || !dia.containsKey(p2)) {
-                throw new Exception("O dia terminou sem que a venda ocorresse.");
-            }
-        } finally {
-            lock.unlock();
+        // Se a espera terminou mas ainda faltam produtos, foi porque o dia mudou!
+        if (!temVendas(dia, p1) || !temVendas(dia, p2)) {
+            throw new Exception("O dia terminou sem que a venda ocorresse.");
         }
     }
 
     // --- REQUISITO 5.2: VENDAS CONSECUTIVAS ---
-    public void esperarConsecutivo(String p, int n, int diaDoPedido, Map<String, List<Evento>> dia) throws Exception {
-        lock.lock();
-        try {
-            Condition cond = lock.newCondition();
-            registarInteresse(p, cond);
+    public void esperarConsecutivo(String p, int n, int diaDoPedido, Map<String, SerieProduto> dia) throws Exception {
+        esperar(List.of(p), diaDoPedido, () -> dia.get(p) != null && dia.get(p).tamanho() >= n);
 
-            while (this.diaCorrente == diaDoPedido && (dia.get(p) == null || dia.get(p).size() < n)) {
-                cond.await();
-            }
-
-            removerInteresse(p, cond);
+        if (this.diaCorrente != diaDoPedido) {
+            throw new Exception("O dia terminou antes de atingir as " + n + " vendas.");
+        }
 
-            if (this.diaCorrente != diaDoPedido) {
-                throw new Exception("O dia terminou antes de atingir as " + n + " vendas.");
-            }
+        if (dia.get(p) == null || dia.get(p).tamanho() < n) {
+            throw new Exception("Erro de sincronização: condição não cumprida.");
+        }
+    }
 
-            if (dia.get(p) == null || dia.get(p).size() < n) {
-                throw new Exception("Erro de sincronização: condição não cumprida.");
-            }
+    // A série pode existir vazia: é criada antes do registo no WAL, que pode falhar
+    private static boolean temVendas(Map<String, SerieProduto> dia, String p) {
+        SerieProduto serie = dia.get(p);
+        return serie != null && serie.tamanho() > 0;
+    }
 
+    /**
+     * Bloqueia enquanto for o dia certo e a condição não se verificar.
+     * A espera é registada ANTES da primeira verificação: uma venda que chegue entretanto
+     * ou já é vista pela condição, ou encontra a espera registada e acorda-a.
+     */
+    private void esperar(List<String> produtos, int diaDoPedido, BooleanSupplier condicao) throws InterruptedException {
+        Espera espera = new Espera();
+        for (String p : produtos) registarInteresse(p, espera);
+        try {
+            espera.aguardar(() -> this.diaCorrente != diaDoPedido || condicao.getAsBoolean());
         } finally {
-            lock.unlock();
+            for (String p : produtos) removerInteresse(p, espera);
         }
     }
 
-    // Métodos auxiliares de gestão do mapa de condições
-    private void registarInteresse(String p, Condition c) {
-        interessados.putIfAbsent(p, new ArrayList<>());
-        interessados.get(p).add(c);
+    // Métodos auxiliares de gestão do mapa de esperas
+    private void registarInteresse(String p, Espera e) {
+        interessados.compute(p, (k, lista) -> {
+            if (lista == null) lista = ConcurrentHashMap.newKeySet();
+            lista.add(e);
+            return lista;
+        });
     }
 
-    private void removerInteresse(String p, Condition c) {
-        List<Condition> lista = interessados.get(p);
-        if (lista != null) {
-            lista.remove(c);
-            if (lista.isEmpty()) interessados.remove(p);
+    private void removerInteresse(String p, Espera e) {
+        interessados.computeIfPresent(p, (k, lista) -> {
+            lista.remove(e);
+            return lista.isEmpty() ? null : lista;
+        });
+    }
+
+    // Uma thread à espera: lock e Condition só dela
+    private static class Espera {
+        private final ReentrantLock lock = new ReentrantLock();
+        private final Condition cond = lock.newCondition();
+        private boolean sinal = false;
+
+        void acordar() {
+            lock.lock();
+            try {
+                sinal = true;
+                cond.signal();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void aguardar(BooleanSupplier terminou) throws InterruptedException {
+            lock.lock();
+            try {
+                while (!terminou.getAsBoolean()) {
+                    // Só dorme se ninguém sinalizou desde a última verificação
+                    while (!sinal) cond.await();
+                    sinal = false;
+                }
+            } finally {
+                lock.unlock();
+            }
         }
     }
-}
\ No newline at end of file
+}
@@ -5,19 +5,32 @@ public class OpCode {
 
     // Escrita
     public static final int ADD_EVENT = 3;
+    public static final int ADD_EVENTS = 18; // Várias vendas num só pedido (ack com as posições rejeitadas)
 
     // Consultas de Agregação
     public static final int GET_QUANTITY = 4;
     public static final int GET_VOLUME = 5;
     public static final int GET_AVG_PRICE = 6;
     public static final int GET_MAX_PRICE = 7;
+    public static final int GET_STATS = 11;      // Todas as agregações acima numa só resposta
+    public static final int GET_STATS_BATCH = 12; // GET_STATS para uma lista de produtos (em fluxo, como o FILTER_EVENTS_STREAM)
+    public static final int TOP_K = 13;           // Produtos que mais venderam (volume ou quantidade)
+    public static final int GET_PERCENTILES = 14; // Quantis do preço de venda (ex.: p50, p95, p99)
+    public static final int GET_TIME_RANGE = 15;  // GET_STATS só entre duas horas do dia (baldes por minuto)
+    public static final int GET_STATS_TODAY = 17; // GET_STATS incluindo o dia corrente (ainda aberto)
 
     // Consultas Complexas
     public static final int FILTER_EVENTS = 8;
     public static final int SIMULTANEOUS_SALES = 9;
     public static final int CONSECUTIVE_SALES = 10;
+    public static final int FILTER_EVENTS_STREAM = 16; // FILTER_EVENTS em vários frames (CHUNK... e OK no fim)
+
+    // Controlo dos fluxos (com a tag do fluxo; o servidor não lhes responde com um OK próprio)
+    public static final int STREAM_CREDIT = 19; // O cliente aceita mais N CHUNKs deste fluxo
+    public static final int CANCEL_STREAM = 20; // O cliente desistiu: o servidor fecha o fluxo com um OK vazio
 
     // Respostas do Servidor
     public static final int OK = 200;
+    public static final int CHUNK = 201;   // Parte de uma resposta em fluxo (o OK ou ERROR fecha o fluxo)
     public static final int ERROR = 255;
 }
\ No newline at end of file
@@ -1,17 +1,35 @@
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 public class SerieDia {
     private final int diaID;
-    // Organizamos por produto para que o 'calcularParaProduto' seja instantâneo
-    private Map<String, List<Evento>> eventosByProduct;
-    private final Map<String, Stats> cacheStats = new HashMap<>();
+    // Organizamos por produto para que o resumo de cada produto seja calculado diretamente
+    private Map<String, SerieProduto> eventosByProduct;
+    // Depois de ir para disco: ficheiro mapeado com diretório de produtos e resumos
+    private FicheiroDia ficheiro;
+    // Resumo por produto calculado uma vez no fecho do dia (enquanto o dia está em heap)
+    private Map<String, Stats> resumos;
+    // Sketches de quantis dos preços, calculados ao mesmo tempo que os resumos
+    private Map<String, SketchPrecos> sketches;
+    // Produtos já descodificados do ficheiro (reaproveitados por filtros seguintes)
+    private final Map<String, SerieProduto> descodificados = new ConcurrentHashMap<>();
     private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    // Falso enquanto o dia acabado de fechar ainda não foi gravado (não pode sair da memória)
+    private volatile boolean persistido;
+    // Gestor a avisar quando o próprio dia se volta a carregar (null: dia fora do histórico)
+    private final GestorResidencia residencia;
 
-    public SerieDia(int id, Map<String, List<Evento>> dados) {
+    public SerieDia(int id, Map<String, SerieProduto> dados) {
+        this(id, dados, null);
+    }
+
+    public SerieDia(int id, Map<String, SerieProduto> dados, GestorResidencia residencia) {
         this.diaID = id;
         this.eventosByProduct = dados;
+        this.persistido = (dados == null); // Sem dados em memória = dia que já vem do disco
+        this.residencia = residencia;
     }
 
 
@@ -20,127 +38,293 @@ public class SerieDia {
         return this.diaID;
     }
 
+    public static File ficheiroDoDia(int diaID) {
+        return new File("dia_" + diaID + ".bin");
+    }
+
     // --- MÉTODOS DE GESTÃO DE MEMÓRIA ---
 
     public boolean estaEmMemoria() {
         lock.readLock().lock();
-        try { return this.eventosByProduct != null; }
+        try { return this.eventosByProduct != null || this.ficheiro != null; }
         finally { lock.readLock().unlock(); }
     }
 
+    /**
+     * Estimativa dos bytes que este dia ocupa no heap (usada pelo GestorResidencia).
+     * O ficheiro mapeado não conta: vive na page cache do SO.
+     */
+    public long tamanhoEmBytes() {
+        lock.readLock().lock();
+        try {
+            long total = 256; // O próprio objeto, locks e a referência ao mapeamento
+            if (eventosByProduct != null) {
+                for (Map.Entry<String, SerieProduto> e : eventosByProduct.entrySet()) {
+                    total += 64 + 2L * e.getKey().length() + e.getValue().bytesEmHeap();
+                }
+            }
+            if (resumos != null) total += 96L * resumos.size();
+            if (sketches != null) {
+                for (SketchPrecos s : sketches.values()) total += s.bytesEmHeap();
+            }
+            for (Map.Entry<String, SerieProduto> e : descodificados.entrySet()) {
+                total += 64 + 2L * e.getKey().length() + e.getValue().bytesEmHeap();
+            }
+            return total;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public boolean estaPersistido() {
+        return persistido;
+    }
+
     public void descarregarEventos() {
         lock.writeLock().lock();
-        try { this.eventosByProduct = null; }
+        try {
+            if (!persistido) return; // Ainda só existe em memória
+            this.eventosByProduct = null;
+            this.resumos = null;
+            this.sketches = null;
+            this.descodificados.clear();
+            // O mapeamento é libertado pelo GC; as páginas continuam na page cache do SO
+            this.ficheiro = null;
+        }
         finally { lock.writeLock().unlock(); }
     }
 
-    // --- MÉTODOS DE AGREGAÇÃO (LAZY & CACHING) ---
+    // --- MÉTODOS DE AGREGAÇÃO (RESUMOS PRÉ-CALCULADOS) ---
 
-    public Stats getStats(String produto) {
-        // 1. Tentar ler do Cache (Modo Lazy)
-        lock.readLock().lock();
+    /**
+     * Calcula o resumo (Stats) de todos os produtos do dia numa única passagem.
+     * Chamado pela TSDB no fecho do dia; os resumos são depois gravados no ficheiro,
+     * por isso as consultas de agregação nunca precisam de voltar a ler eventos.
+     */
+    public void calcularResumos() {
+        lock.writeLock().lock();
         try {
-            if (cacheStats.containsKey(produto)) {
-                return cacheStats.get(produto);
+            if (eventosByProduct == null || resumos != null) return;
+            Map<String, Stats> novos = new HashMap<>(eventosByProduct.size());
+            Map<String, SketchPrecos> novosSketches = new HashMap<>(eventosByProduct.size());
+            for (Map.Entry<String, SerieProduto> entry : eventosByProduct.entrySet()) {
+                Stats s = Stats.calcular(entry.getValue());
+                if (s != null) novos.put(entry.getKey(), s);
+                SketchPrecos sk = SketchPrecos.calcular(entry.getValue());
+                if (sk != null) novosSketches.put(entry.getKey(), sk);
             }
+            this.resumos = novos;
+            this.sketches = novosSketches;
         } finally {
-            lock.readLock().unlock();
+            lock.writeLock().unlock();
         }
+    }
 
-        // 2. Se não estiver no cache, calcular (On Demand)
-        lock.writeLock().lock();
+    // Resumos calculados no fecho (null se ainda não foram calculados ou o dia já saiu do heap)
+    public Map<String, Stats> getResumos() {
+        lock.readLock().lock();
         try {
-            // Dupla verificação (outro thread pode ter calculado entretanto)
-            if (cacheStats.containsKey(produto)) return cacheStats.get(produto);
+            return resumos;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
 
-            // IMPORTANTE: A TSDB deve garantir que os dados estão carregados
-            // antes de chamar este método, mas por segurança podemos verificar:
-            if (eventosByProduct == null) {
-                carregarDoDisco();
+    public Stats getStats(String produto) {
+        lock.readLock().lock();
+        try {
+            // 1. Dia ainda em heap: usa os resumos do fecho (ou calcula se ainda não existirem)
+            if (eventosByProduct != null) {
+                return resumos != null ? resumos.get(produto) : Stats.calcular(eventosByProduct.get(produto));
             }
-
-            Stats s = calcularParaProduto(produto);
-            cacheStats.put(produto, s); // Guarda no cache para o futuro
-            return s;
+            // 2. Dia em disco: o resumo está na entrada do diretório, sem tocar nos eventos
+            if (ficheiro != null) return ficheiro.resumo(produto);
         } catch (IOException e) {
             return null; // Tratar erro de leitura de disco
         } finally {
-            lock.writeLock().unlock();
+            lock.readLock().unlock();
+        }
+
+        // 3. Ficheiro ainda não mapeado: abrir (só valida cabeçalho e rodapé) e ler o resumo
+        try {
+            recarregar();
+            lock.readLock().lock();
+            try {
+                return ficheiro != null ? ficheiro.resumo(produto) : null;
+            } finally {
+                lock.readLock().unlock();
+            }
+        } catch (IOException e) {
+            return null;
         }
     }
 
-    private Stats calcularParaProduto(String produto) {
-        List<Evento> lista = eventosByProduct.get(produto);
-        if (lista == null || lista.isEmpty()) return null;
+    /**
+     * Resumos de vários produtos com uma única aquisição do lock do dia (consultas em lote).
+     * Os produtos que não venderam neste dia ficam de fora do mapa.
+     */
+    public Map<String, Stats> getStatsLote(Collection<String> produtos) {
+        Map<String, Stats> res = new HashMap<>();
+        try {
+            if (!estaEmMemoria()) recarregar();
+            lock.readLock().lock();
+            try {
+                for (String p : produtos) {
+                    Stats s;
+                    if (eventosByProduct != null) {
+                        s = resumos != null ? resumos.get(p) : Stats.calcular(eventosByProduct.get(p));
+                    } else if (ficheiro != null) {
+                        s = ficheiro.resumo(p);
+                    } else {
+                        break; // Expulso entretanto: trata-se como o getStats (sem dados)
+                    }
+                    if (s != null) res.put(p, s);
+                }
+            } finally {
+                lock.readLock().unlock();
+            }
+        } catch (IOException e) {
+            System.err.println("Erro ao ler resumos do dia " + diaID + ": " + e.getMessage());
+        }
+        return res;
+    }
 
-        long qtdTotal = 0;
-        double volTotal = 0;
-        double precoMax = 0;
+    // Sketch de quantis dos preços do produto neste dia (null se não vendeu)
+    public SketchPrecos getSketch(String produto) {
+        try {
+            if (!estaEmMemoria()) recarregar();
+            lock.readLock().lock();
+            try {
+                if (eventosByProduct != null) {
+                    return sketches != null ? sketches.get(produto) : SketchPrecos.calcular(eventosByProduct.get(produto));
+                }
+                if (ficheiro != null) return ficheiro.sketch(produto);
+            } finally {
+                lock.readLock().unlock();
+            }
+        } catch (IOException e) {
+            System.err.println("Erro ao ler sketch do dia " + diaID + ": " + e.getMessage());
+        }
+        return null;
+    }
 
-        for (Evento e : lista) {
-            qtdTotal += e.getQuantidade();
-            volTotal += (e.getQuantidade() * e.getPreco());
-            if (e.getPreco() > precoMax) precoMax = e.getPreco();
+    // Agregado do produto nos minutos [minutoInicio, minutoFim) deste dia, a partir dos baldes por minuto
+    public Stats getStatsIntervalo(String produto, int minutoInicio, int minutoFim) {
+        try {
+            if (!estaEmMemoria()) recarregar();
+            lock.readLock().lock();
+            try {
+                if (eventosByProduct != null) {
+                    SerieProduto serie = eventosByProduct.get(produto);
+                    if (serie == null) return null;
+                    BaldesMinuto b = serie.getBaldes() != null ? serie.getBaldes() : BaldesMinuto.calcular(serie);
+                    return b.agregar(minutoInicio, minutoFim);
+                }
+                if (ficheiro != null) return ficheiro.resumoIntervalo(produto, minutoInicio, minutoFim);
+            } finally {
+                lock.readLock().unlock();
+            }
+        } catch (IOException e) {
+            System.err.println("Erro ao ler baldes do dia " + diaID + ": " + e.getMessage());
         }
+        return null;
+    }
 
-        return new Stats(qtdTotal, volTotal, precoMax);
+    // Resumos de todos os produtos do dia (TOP_K): dos resumos em heap ou do diretório do ficheiro
+    public Map<String, Stats> getTodosResumos() {
+        calcularResumos(); // Sem efeito se o dia já não estiver em heap
+        try {
+            if (!estaEmMemoria()) recarregar();
+            lock.readLock().lock();
+            try {
+                if (resumos != null) return resumos;
+                if (ficheiro != null) return ficheiro.resumos();
+            } finally {
+                lock.readLock().unlock();
+            }
+        } catch (IOException e) {
+            System.err.println("Erro ao ler resumos do dia " + diaID + ": " + e.getMessage());
+        }
+        return new HashMap<>();
     }
 
     // --- MÉTODOS DE PERSISTÊNCIA ---
 
     public void persistirParaDisco() throws IOException {
+        calcularResumos(); // Garante que os resumos vão para o ficheiro
         lock.readLock().lock();
         try {
             if (eventosByProduct == null) return;
-            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream("dia_" + diaID + ".bin")))) {
-                out.writeInt(eventosByProduct.size()); // Número de produtos
-                for (Map.Entry<String, List<Evento>> entry : eventosByProduct.entrySet()) {
-                    out.writeUTF(entry.getKey()); // Nome do produto
-                    out.writeInt(entry.getValue().size()); // Qtd de eventos do produto
-                    for (Evento e : entry.getValue()) {
-                        e.serialize(out);
-                    }
-                }
-            }
+            FicheiroDia.escrever(ficheiroDoDia(diaID), eventosByProduct, resumos, sketches);
+            this.persistido = true;
         } finally {
             lock.readLock().unlock();
         }
     }
 
-    public void carregarDoDisco() throws IOException {
+    /**
+     * Mapeia o ficheiro do dia em memória. Só o cabeçalho e o rodapé são validados:
+     * o diretório de produtos permite depois ler apenas os produtos pedidos.
+     *
+     * @return true se foi esta chamada a mapear o ficheiro
+     */
+    public boolean carregarDoDisco() throws IOException {
+        File f = ficheiroDoDia(diaID);
+        if (!f.exists()) return false;
+
+        // O mapeamento é feito sem o lock: quem está a ler este dia não fica à espera do I/O
+        FicheiroDia aberto = FicheiroDia.abrir(f);
+
         lock.writeLock().lock();
         try {
-            File f = new File("dia_" + diaID + ".bin");
-            if (!f.exists()) return;
-            try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(f)))) {
-                int numProdutos = in.readInt();
-                this.eventosByProduct = new HashMap<>(numProdutos);
-                for (int i = 0; i < numProdutos; i++) {
-                    String prod = in.readUTF();
-                    int numEventos = in.readInt();
-                    List<Evento> lista = new ArrayList<>(numEventos);
-                    for (int j = 0; j < numEventos; j++) {
-                        lista.add(Evento.deserialize(in));
-                    }
-                    eventosByProduct.put(prod, lista);
-                }
-            }
+            if (this.ficheiro != null || this.eventosByProduct != null) return false;
+            this.ficheiro = aberto;
+            return true;
         } finally {
             lock.writeLock().unlock();
         }
     }
 
-    public Map<String, List<Evento>> obterEventosDe(List<String> nomes) {
+    // Carga pedida pelo próprio dia (expulso depois de a TSDB o ter garantido em memória):
+    // passa pelo gestor, senão a memória ficava fora do orçamento e o dia nunca mais saía
+    private void recarregar() throws IOException {
+        if (carregarDoDisco() && residencia != null) residencia.recarregado(this);
+    }
+
+    public Map<String, VistaEventos> obterEventosDe(List<String> nomes) throws IOException {
+        return obterEventosDe(nomes, FiltroEventos.todos());
+    }
+
+    /**
+     * Eventos dos produtos pedidos que passam no filtro (produtos sem eventos aceites ficam de fora).
+     * Com intervalo de tempo, um produto ainda não descodificado só tem os blocos desse intervalo
+     * descodificados (e o resultado parcial não vai para a cache).
+     */
+    public Map<String, VistaEventos> obterEventosDe(List<String> nomes, FiltroEventos filtro) throws IOException {
         lock.readLock().lock();
         try {
-            Map<String, List<Evento>> resultado = new HashMap<>();
-
-            if (eventosByProduct == null) return resultado; // Segurança
+            Map<String, VistaEventos> resultado = new HashMap<>();
 
-            for (String nome : nomes) {
-                if (eventosByProduct.containsKey(nome)) {
-                    // Cria cópia da lista para não dar erro se o original mudar depois
-                    resultado.put(nome, new ArrayList<>(eventosByProduct.get(nome)));
+            if (eventosByProduct != null) {
+                for (String nome : nomes) {
+                    if (eventosByProduct.containsKey(nome)) {
+                        // Vista congelada: não copia os arrays e não é afetada por escritas futuras
+                        VistaEventos vista = filtro.aplicar(eventosByProduct.get(nome).vista());
+                        if (vista != null) resultado.put(nome, vista);
+                    }
+                }
+            } else if (ficheiro != null) {
+                for (String nome : nomes) {
+                    // Procura só os produtos pedidos no diretório e descodifica os seus blocos
+                    SerieProduto serie = descodificados.get(nome);
+                    if (serie == null && filtro.temIntervaloTempo()) {
+                        serie = ficheiro.procurar(nome, filtro.getTsDesde(), filtro.getTsAte());
+                    } else if (serie == null) {
+                        serie = ficheiro.procurar(nome);
+                        if (serie != null) descodificados.put(nome, serie);
+                    }
+                    VistaEventos vista = filtro.aplicar(serie);
+                    if (vista != null) resultado.put(nome, vista);
                 }
             }
             return resultado;
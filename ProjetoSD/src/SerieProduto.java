@@ -0,0 +1,94 @@
+import java.util.Arrays;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Armazenamento colunar dos eventos de UM produto num dia.
+ * Em vez de um objeto Evento por venda, guardamos três arrays primitivos
+ * que crescem por duplicação: muito menos objetos para o GC e leituras sequenciais.
+ */
+public class SerieProduto implements VistaEventos {
+    private static final int CAPACIDADE_INICIAL = 16;
+
+    private int[] quantidades;
+    private double[] precos;
+    private long[] timestamps;
+    // Volátil: as escritas nos arrays ficam visíveis a quem ler o tamanho depois de o evento ser acrescentado
+    private volatile int tamanho = 0;
+    // Um escritor de cada vez por produto (a TSDB adquire-o à volta de WAL + acrescento); os leitores não o usam
+    private final ReentrantLock escrita = new ReentrantLock();
+    // Agregados por minuto, mantidos à chegada dos eventos do dia corrente (null nas séries lidas do disco)
+    private BaldesMinuto baldes;
+
+    public SerieProduto() {
+        this(CAPACIDADE_INICIAL);
+    }
+
+    public SerieProduto(int capacidade) {
+        int cap = Math.max(1, capacidade);
+        this.quantidades = new int[cap];
+        this.precos = new double[cap];
+        this.timestamps = new long[cap];
+    }
+
+    // Vista que partilha os arrays mas fica "congelada" no tamanho atual
+    private SerieProduto(int[] quantidades, double[] precos, long[] timestamps, int tamanho) {
+        this.quantidades = quantidades;
+        this.precos = precos;
+        this.timestamps = timestamps;
+        this.tamanho = tamanho;
+    }
+
+    public void adicionar(int qtd, double preco, long ts) {
+        int n = tamanho;
+        if (n == quantidades.length) crescer();
+        quantidades[n] = qtd;
+        precos[n] = preco;
+        timestamps[n] = ts;
+        tamanho = n + 1; // Publica o evento
+    }
+
+    // Usado na ingestão (TSDB.registaEvento e reposição do WAL): atualiza também os baldes por minuto
+    public void adicionarComBaldes(int qtd, double preco, long ts) {
+        adicionar(qtd, preco, ts);
+        if (baldes == null) baldes = new BaldesMinuto();
+        baldes.adicionar(qtd, preco, ts);
+    }
+
+    public BaldesMinuto getBaldes() { return baldes; }
+
+    public ReentrantLock getLockEscrita() { return escrita; }
+
+    private void crescer() {
+        int novaCap = quantidades.length * 2;
+        quantidades = Arrays.copyOf(quantidades, novaCap);
+        precos = Arrays.copyOf(precos, novaCap);
+        timestamps = Arrays.copyOf(timestamps, novaCap);
+    }
+
+    // Getters por posição (acesso direto às colunas, sem alocar Evento)
+    @Override
+    public int tamanho() { return tamanho; }
+
+    @Override
+    public int getQuantidade(int i) { return quantidades[i]; }
+
+    @Override
+    public double getPreco(int i) { return precos[i]; }
+
+    @Override
+    public long getTimestamp(int i) { return timestamps[i]; }
+
+    // Memória ocupada no heap pelas colunas (capacidade, não só o tamanho usado)
+    public long bytesEmHeap() {
+        return 48 + (long) quantidades.length * (4 + 8 + 8) + (baldes != null ? baldes.bytesEmHeap() : 0);
+    }
+
+    /**
+     * Devolve uma vista imutável com os eventos existentes neste momento.
+     * Como as escritas só acrescentam no fim, partilhar os arrays é seguro (O(1), sem cópia).
+     */
+    public SerieProduto vista() {
+        int n = tamanho; // Ler o tamanho primeiro: os arrays vistos a seguir contêm pelo menos n eventos
+        return new SerieProduto(quantidades, precos, timestamps, n);
+    }
+}
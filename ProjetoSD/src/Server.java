@@ -6,18 +6,37 @@ public class Server {
     public static void main(String[] args) {
         // 1. Configurações iniciais
         int D = 10; // Retenção total de dias (exigência do guião)
-        int S = 5;  // Limite de séries temporais em memória RAM
+        long memoriaMB = Long.parseLong(opcao(args, "memoria", "256")); // Orçamento de heap para o histórico
+        // Threads para agregar os dias das consultas multi-dia em paralelo
+        int paralelismo = Integer.parseInt(opcao(args, "paralelismo",
+                String.valueOf(Runtime.getRuntime().availableProcessors())));
         int porto = 12345;
+        // Rede: --modo=bloqueante (uma thread por cliente) | nio (reatores + pool de trabalhadores)
+        String modo = opcao(args, "modo", "bloqueante");
+        int reatores = Integer.parseInt(opcao(args, "reatores", "2"));
+        // Threads dos clientes/pedidos: --threads=plataforma | virtuais
+        ModoThreads threads = ModoThreads.parse(opcao(args, "threads", "plataforma"));
+        int trabalhadores = Integer.parseInt(opcao(args, "trabalhadores",
+                String.valueOf(Math.max(8, 2 * Runtime.getRuntime().availableProcessors()))));
 
         try {
+            // Durabilidade do WAL: --wal=desligado | lote | evento
+            WriteAheadLog.Durabilidade durabilidade = WriteAheadLog.Durabilidade.parse(opcao(args, "wal", "lote"));
+
             // 2. Inicialização do motor lógico (TSDB)
-            TSDB tsdb = new TSDB(D, S);
-            ServerSocket serverSocket = new ServerSocket(porto);
+            TSDB tsdb = new TSDB(D, memoriaMB * 1024 * 1024, durabilidade, paralelismo);
+            boolean nio = modo.equals("nio");
+            if (!nio && !modo.equals("bloqueante")) {
+                throw new IllegalArgumentException("Modo desconhecido: " + modo + " (use bloqueante ou nio)");
+            }
 
             System.out.println("#########################################");
             System.out.println("###   SERVIDOR TSDB STORE - ATIVO     ###");
             System.out.println("###   Porto: " + porto + "                    ###");
-            System.out.println("###   Config: D=" + D + ", S=" + S + "               ###");
+            System.out.println("###   Config: D=" + D + ", Memória=" + memoriaMB + " MB        ###");
+            System.out.println("###   WAL: " + durabilidade + ", Paralelismo: " + paralelismo);
+            System.out.println("###   Rede: " + modo + (nio ? " (" + reatores + " reatores, " + trabalhadores + " trabalhadores)" : "")
+                    + ", Threads: " + threads);
             System.out.println("#########################################");
             System.out.println("Dica: Prime ENTER para mudar para o próximo dia.");
 
@@ -27,13 +46,21 @@ public class Server {
                 Scanner sc = new Scanner(System.in);
                 while (true) {
                     sc.nextLine(); // Espera por um Enter na consola do servidor
-                    System.out.println("[ADMIN] A fechar o dia e persistir dados...");
+                    System.out.println("[ADMIN] A fechar o dia (persistência em segundo plano)...");
                     tsdb.proximoDia();
-                    System.out.println("[ADMIN] Dia mudado com sucesso. Novo dia iniciado.");
+                    System.out.printf("[ADMIN] Dia mudado com sucesso. Pausa da ingestão: %.3f ms.%n",
+                            tsdb.getUltimaPausaRollover() / 1_000_000.0);
+                    System.out.println("[ADMIN] " + tsdb.getResidencia());
                 }
             }).start();
 
             // 4. Ciclo Principal de Aceitação de Clientes
+            if (nio) {
+                // Sem uma thread por cliente: as ligações inativas não custam uma stack cada
+                new ServidorNIO(tsdb, porto, reatores, trabalhadores, threads).executar();
+                return;
+            }
+            ServerSocket serverSocket = new ServerSocket(porto);
             while (true) {
                 // Fica bloqueado aqui até que um cliente faça "new Socket()"
                 Socket clientSocket = serverSocket.accept();
@@ -41,8 +68,9 @@ public class Server {
 
                 // 5. Criação e lançamento do Worker
                 // Cada cliente recebe a sua própria thread para não bloquear os outros
+                // (com --threads=virtuais, uma thread virtual: os clientes parados não gastam threads do sistema)
                 ServerWorker worker = new ServerWorker(tsdb, clientSocket);
-                Thread workerThread = new Thread(worker);
+                Thread workerThread = threads.nova("cliente-" + clientSocket.getPort(), worker);
                 workerThread.start();
             }
 
@@ -51,4 +79,13 @@ public class Server {
             e.printStackTrace();
         }
     }
+
+    // Lê opções da linha de comandos no formato --nome=valor
+    private static String opcao(String[] args, String nome, String omissao) {
+        String prefixo = "--" + nome + "=";
+        for (String a : args) {
+            if (a.startsWith(prefixo)) return a.substring(prefixo.length());
+        }
+        return omissao;
+    }
 }
\ No newline at end of file
@@ -2,24 +2,44 @@ import java.io.*;
 import java.net.Socket;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 
 public class ServerWorker implements Runnable {
     private final TSDB tsdb;
-    private final TaggedConnection conn;
+    private final CanalRespostas conn;      // Para onde vão as respostas
+    private final TaggedConnection ligacao; // Só no modo bloqueante (run); null no ServidorNIO
     private String utilizadorLogado = null;
 
+    // Eventos por frame nas respostas em fluxo (~80 KB por CHUNK)
+    private static final int EVENTOS_POR_CHUNK = 4096;
+    private static final int PRODUTOS_POR_CHUNK = 1024; // GET_STATS_BATCH (~60 KB por CHUNK)
+    private static final int MAX_FLUXOS_LIGACAO = 64;
+    private static final int MAX_QUANTIS = 64; // GET_PERCENTILES: o nº de quantis vem da rede
+
+    // Fluxos abertos nesta ligação, pela tag do pedido. Os pedidos de uma ligação são tratados
+    // um de cada vez (em ambos os modos), por isso não é preciso lock
+    private final Map<Integer, FluxoServidor> fluxos = new HashMap<>();
+
     public ServerWorker(TSDB tsdb, Socket socket) throws IOException {
         this.tsdb = tsdb;
-        this.conn = new TaggedConnection(socket);
+        this.ligacao = new TaggedConnection(socket);
+        this.conn = ligacao;
+    }
+
+    // Modo não bloqueante: os pedidos chegam já descodificados pelo ServidorNIO, que chama processar()
+    public ServerWorker(TSDB tsdb, CanalRespostas canal) {
+        this.tsdb = tsdb;
+        this.ligacao = null;
+        this.conn = canal;
     }
 
     @Override
     public void run() {
-        try (conn) {
+        try (ligacao) {
             while (true) {
-                Frame frame = conn.receive(); // Recebe o pedido do cliente
+                Frame frame = ligacao.receive(); // Recebe o pedido do cliente
                 processar(frame);
             }
         } catch (EOFException e) {
@@ -29,7 +49,8 @@ public class ServerWorker implements Runnable {
         }
     }
 
-    private void processar(Frame frame) throws IOException {
+    // Trata um pedido e envia a resposta. Os pedidos da mesma ligação são tratados um de cada vez, por ordem
+    public void processar(Frame frame) throws IOException {
         ByteArrayInputStream bais = new ByteArrayInputStream(frame.payload);
         DataInputStream in = new DataInputStream(bais);
 
@@ -37,6 +58,8 @@ public class ServerWorker implements Runnable {
         ByteArrayOutputStream baos = new ByteArrayOutputStream();
         DataOutputStream out = new DataOutputStream(baos);
 
+        boolean responder = true; // Os pedidos sobre fluxos respondem (ou não) por conta própria
+
         try {
             switch (frame.opCode) {
                 case OpCode.REGISTER:
@@ -48,6 +71,9 @@ public class ServerWorker implements Runnable {
                 case OpCode.ADD_EVENT:
                     if (checkAuth(out)) handleAddEvent(in, out);
                     break;
+                case OpCode.ADD_EVENTS:
+                    if (checkAuth(out)) handleAddEvents(in, out);
+                    break;
                 case OpCode.GET_QUANTITY:
                     if (checkAuth(out)) handleGetQuantity(in, out);
                     break;
@@ -60,6 +86,25 @@ public class ServerWorker implements Runnable {
                 case OpCode.GET_MAX_PRICE:
                     if (checkAuth(out)) handleGetMaxPrice(in, out);
                     break;
+                case OpCode.GET_STATS:
+                    if (checkAuth(out)) handleGetStats(in, out);
+                    break;
+                case OpCode.GET_STATS_TODAY:
+                    if (checkAuth(out)) handleGetStatsToday(in, out);
+                    break;
+                case OpCode.GET_STATS_BATCH:
+                    if (checkAuth(out)) abrirFluxo(frame.tag, criarFluxoStatsLote(in));
+                    responder = false;
+                    break;
+                case OpCode.TOP_K:
+                    if (checkAuth(out)) handleTopK(in, out);
+                    break;
+                case OpCode.GET_PERCENTILES:
+                    if (checkAuth(out)) handleGetPercentiles(in, out);
+                    break;
+                case OpCode.GET_TIME_RANGE:
+                    if (checkAuth(out)) handleGetTimeRange(in, out);
+                    break;
                 case OpCode.SIMULTANEOUS_SALES:
                     if (checkAuth(out)) handleSimultaneous(in, out, frame.tag);
                     break;
@@ -69,11 +114,23 @@ public class ServerWorker implements Runnable {
                 case OpCode.FILTER_EVENTS:
                     if(checkAuth(out)) handleFilter(in, out);
                     break;
+                case OpCode.FILTER_EVENTS_STREAM:
+                    if (checkAuth(out)) abrirFluxo(frame.tag, criarFluxoFiltro(in));
+                    responder = false;
+                    break;
+                case OpCode.STREAM_CREDIT:
+                    responder = false;
+                    creditarFluxo(frame.tag, in.readInt());
+                    break;
+                case OpCode.CANCEL_STREAM:
+                    responder = false;
+                    cancelarFluxo(frame.tag);
+                    break;
                 default:
                     throw new Exception("Comando não suportado: " + frame.opCode);
             }
             // Envia resposta de sucesso
-            conn.send(frame.tag, OpCode.OK, baos.toByteArray());
+            if (responder) conn.send(frame.tag, OpCode.OK, baos.toByteArray());
 
         } catch (Exception e) {
             // Em caso de erro, limpa o buffer e envia mensagem de erro
@@ -114,6 +171,19 @@ public class ServerWorker implements Runnable {
         out.writeUTF("Evento registado.");
     }
 
+    private void handleAddEvents(DataInputStream in, DataOutputStream out) throws IOException {
+        LoteEventos lote = LoteEventos.deserialize(in);
+        Map<Integer, String> erros = tsdb.registaEventos(lote);
+
+        // Resposta: NumAceites(4) NumErros(4) e por erro: Posicao(4) Motivo(UTF)
+        out.writeInt(lote.tamanho() - erros.size());
+        out.writeInt(erros.size());
+        for (Map.Entry<Integer, String> e : erros.entrySet()) {
+            out.writeInt(e.getKey());
+            out.writeUTF(e.getValue());
+        }
+    }
+
     private void handleGetQuantity(DataInputStream in, DataOutputStream out) throws IOException {
         String prod = in.readUTF();
         int dias = in.readInt();
@@ -142,13 +212,66 @@ public class ServerWorker implements Runnable {
         out.writeDouble(res);
     }
 
+    private void handleGetStats(DataInputStream in, DataOutputStream out) throws IOException {
+        String prod = in.readUTF();
+        int dias = in.readInt();
+        tsdb.getStats(prod, dias).serialize(out);
+    }
+
+    private void handleGetStatsToday(DataInputStream in, DataOutputStream out) throws IOException {
+        String prod = in.readUTF();
+        int dias = in.readInt(); // Dias anteriores a somar ao de hoje (0 = só hoje)
+        tsdb.getStatsComHoje(prod, dias).serialize(out);
+    }
+
+    private void handleTopK(DataInputStream in, DataOutputStream out) throws IOException {
+        int k = in.readInt();
+        int dias = in.readInt();
+        boolean porVolume = in.readBoolean();
+
+        // Protocolo: [N] depois N x ([NOME_PRODUTO] [STATS]), do maior para o menor
+        List<Map.Entry<String, Stats>> res = tsdb.getTopK(k, dias, porVolume);
+        out.writeInt(res.size());
+        for (Map.Entry<String, Stats> entry : res) {
+            out.writeUTF(entry.getKey());
+            entry.getValue().serialize(out);
+        }
+    }
+
+    private void handleGetPercentiles(DataInputStream in, DataOutputStream out) throws IOException {
+        String prod = in.readUTF();
+        int dias = in.readInt();
+        int n = in.readInt();
+        if (n <= 0 || n > MAX_QUANTIS) {
+            throw new IOException("Número de quantis inválido (1 a " + MAX_QUANTIS + ").");
+        }
+        double[] quantis = new double[n];
+        for (int i = 0; i < n; i++) {
+            quantis[i] = in.readDouble();
+            if (!(quantis[i] >= 0 && quantis[i] <= 1)) { // Também apanha NaN
+                throw new IOException("Quantil fora de [0, 1]: " + quantis[i]);
+            }
+        }
+
+        // Protocolo: um preço por quantil pedido, pela mesma ordem
+        for (double preco : tsdb.getPercentis(prod, dias, quantis)) {
+            out.writeDouble(preco);
+        }
+    }
+
+    private void handleGetTimeRange(DataInputStream in, DataOutputStream out) throws IOException {
+        String prod = in.readUTF();
+        int dias = in.readInt();
+        int minutoInicio = in.readInt(); // Minutos desde a meia-noite (hora do servidor)
+        int minutoFim = in.readInt();
+        tsdb.getStatsIntervalo(prod, dias, minutoInicio, minutoFim).serialize(out);
+    }
+
     private void handleSimultaneous(DataInputStream in, DataOutputStream out, int tag) throws Exception {
         String p1 = in.readUTF();
         String p2 = in.readUTF();
 
-        int diaAtual = tsdb.getDiaCorrenteID();
-
-        tsdb.getNotificador().esperarSimultaneo(p1, p2, diaAtual, tsdb.getDiaCorrente());
+        tsdb.esperarSimultaneo(p1, p2);
 
         out.writeUTF("Venda simultânea detetada!");
     }
@@ -157,9 +280,7 @@ public class ServerWorker implements Runnable {
         String p = in.readUTF();
         int n = in.readInt();
 
-        int diaDoPedido = tsdb.getDiaID();
-
-        tsdb.getNotificador().esperarConsecutivo(p, n, diaDoPedido, tsdb.getDiaCorrente());
+        tsdb.esperarConsecutivo(p, n);
 
         out.writeUTF("Vendas consecutivas detetadas!");
     }
@@ -178,8 +299,10 @@ public class ServerWorker implements Runnable {
         for (int i = 0; i < numProdutos; i++) {
             produtosInteresse.add(in.readUTF());
         }
+        // Critérios opcionais no fim do pedido: os clientes antigos não os enviam
+        FiltroEventos filtro = in.available() > 0 ? FiltroEventos.deserialize(in) : FiltroEventos.todos();
 
-        Map<String, List<Evento>> dados = tsdb.getEventosFiltrados(produtosInteresse, diasAtras);
+        Map<String, VistaEventos> dados = tsdb.getEventosFiltrados(produtosInteresse, diasAtras, filtro);
 
         // A. Primeiro, enviamos o Dicionário (ID -> Nome)
         // Atribui um ID numérico temporário a cada produto encontrado
@@ -201,19 +324,176 @@ public class ServerWorker implements Runnable {
         // B. Agora enviamos os eventos usando APENAS os IDs
         // Protocolo: [ID_PRODUTO] [QTD_EVENTOS] [EV1] [EV2]...
 
-        for (Map.Entry<String, List<Evento>> entry : dados.entrySet()) {
+        for (Map.Entry<String, VistaEventos> entry : dados.entrySet()) {
             String nome = entry.getKey();
-            List<Evento> lista = entry.getValue();
+            VistaEventos serie = entry.getValue();
             int id = dicionario.get(nome);
 
-            out.writeInt(id);            // Identificador curto (4 bytes)
-            out.writeInt(lista.size());  // Quantos eventos
+            out.writeInt(id);               // Identificador curto (4 bytes)
+            out.writeInt(serie.tamanho());  // Quantos eventos
 
-            for (Evento e : lista) {
-                // Serializa apenas (Qtd, Preco, Timestamp)
-                e.serialize(out);
+            CursorEventos c = serie.cursor();
+            while (c.proximo()) {
+                // Serializa apenas (Qtd, Preco, Timestamp), direto das colunas
+                c.serializar(out);
             }
         }
         out.flush();
     }
-}
\ No newline at end of file
+
+    // --- RESPOSTAS EM FLUXO ---
+    // O pedido só regista o fluxo: os CHUNKs seguem com o crédito que o cliente for dando
+    // (o primeiro STREAM_CREDIT vem logo atrás do pedido), e o OK ou ERROR final fecha-o.
+
+    private void abrirFluxo(int tag, FluxoServidor fluxo) throws IOException {
+        if (fluxos.size() >= MAX_FLUXOS_LIGACAO) {
+            throw new IOException("Demasiados fluxos abertos nesta ligação.");
+        }
+        fluxos.put(tag, fluxo);
+    }
+
+    // Envia até n CHUNKs; se o fluxo acabar pelo caminho, envia também o OK final
+    private void creditarFluxo(int tag, int n) throws IOException {
+        FluxoServidor fluxo = fluxos.get(tag);
+        if (fluxo == null) return; // Já terminou ou foi cancelado: crédito atrasado
+        try {
+            for (; n > 0; n--) {
+                byte[] chunk = fluxo.proximoChunk();
+                if (chunk == null) {
+                    fluxos.remove(tag);
+                    conn.send(tag, OpCode.OK, fluxo.fim());
+                    return;
+                }
+                conn.send(tag, OpCode.CHUNK, chunk);
+            }
+        } catch (IOException e) {
+            fluxos.remove(tag); // O ERROR enviado pelo processar() fecha o fluxo no cliente
+            throw e;
+        }
+    }
+
+    private void cancelarFluxo(int tag) throws IOException {
+        // O OK vazio diz ao cliente que já não vem mais nada com esta tag
+        if (fluxos.remove(tag) != null) conn.send(tag, OpCode.OK, new byte[0]);
+    }
+
+    private FluxoServidor criarFluxoFiltro(DataInputStream in) throws IOException {
+        int diasAtras = in.readInt();
+        int numProdutos = in.readInt();
+        List<String> produtosInteresse = new ArrayList<>();
+        for (int i = 0; i < numProdutos; i++) {
+            produtosInteresse.add(in.readUTF());
+        }
+        FiltroEventos filtro = in.available() > 0 ? FiltroEventos.deserialize(in) : FiltroEventos.todos();
+        return new FluxoFiltro(produtosInteresse, diasAtras, filtro);
+    }
+
+    private FluxoServidor criarFluxoStatsLote(DataInputStream in) throws IOException {
+        int dias = in.readInt();
+        int numProdutos = in.readInt();
+        List<String> produtos = new ArrayList<>(numProdutos);
+        for (int i = 0; i < numProdutos; i++) {
+            produtos.add(in.readUTF());
+        }
+        return new FluxoStatsLote(produtos, dias);
+    }
+
+    // GET_STATS_BATCH: cada CHUNK leva até PRODUTOS_POR_CHUNK pares (Produto, Stats), pela ordem pedida.
+    // As estatísticas são calculadas de uma vez no primeiro CHUNK (cada dia visitado uma só vez para
+    // o lote inteiro) e depois só fatiadas: o servidor guarda um Stats por produto até o fluxo acabar
+    private class FluxoStatsLote implements FluxoServidor {
+        private final List<String> produtos;
+        private final int dias;
+        private Iterator<Map.Entry<String, Stats>> resultados = null;
+        private int enviados = 0;
+
+        FluxoStatsLote(List<String> produtos, int dias) {
+            this.produtos = produtos;
+            this.dias = dias;
+        }
+
+        @Override
+        public byte[] proximoChunk() throws IOException {
+            if (resultados == null) resultados = tsdb.getStatsLote(produtos, dias).entrySet().iterator();
+            if (!resultados.hasNext()) return null;
+
+            ByteArrayOutputStream chunk = new ByteArrayOutputStream();
+            DataOutputStream cout = new DataOutputStream(chunk);
+            for (int n = 0; n < PRODUTOS_POR_CHUNK && resultados.hasNext(); n++) {
+                Map.Entry<String, Stats> entry = resultados.next();
+                cout.writeUTF(entry.getKey());
+                entry.getValue().serialize(cout);
+                enviados++;
+            }
+            return chunk.toByteArray();
+        }
+
+        @Override
+        public byte[] fim() throws IOException {
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            new DataOutputStream(baos).writeInt(enviados); // Nº de produtos enviados, no OK que fecha o fluxo
+            return baos.toByteArray();
+        }
+    }
+
+    /**
+     * FILTER_EVENTS em fluxo: os eventos seguem em frames CHUNK com a tag do pedido, cada um
+     * com no máximo EVENTOS_POR_CHUNK eventos, e o OK final (com o total) marca o fim.
+     * Só é produzido um CHUNK por unidade de crédito (STREAM_CREDIT); um CANCEL_STREAM
+     * descarta o fluxo. Os produtos são pedidos um a um, por isso nunca há mais do que a
+     * série de um produto e um chunk em memória para esta resposta.
+     *
+     * Protocolo de cada CHUNK: uma ou mais secções [NOME_PRODUTO] [N] [EV1]...[EVN]
+     * (um produto grande continua no chunk seguinte com nova secção do mesmo nome).
+     */
+    private class FluxoFiltro implements FluxoServidor {
+        private final List<String> produtos;
+        private final int diasAtras;
+        private final FiltroEventos filtro;
+
+        private int proximoProduto = 0;
+        private String produto = null;
+        private VistaEventos serie = null; // Só a série do produto em curso
+        private int pos = 0;
+        private long total = 0;
+
+        FluxoFiltro(List<String> produtos, int diasAtras, FiltroEventos filtro) {
+            this.produtos = produtos;
+            this.diasAtras = diasAtras;
+            this.filtro = filtro;
+        }
+
+        @Override
+        public byte[] proximoChunk() throws IOException {
+            ByteArrayOutputStream chunk = new ByteArrayOutputStream();
+            DataOutputStream cout = new DataOutputStream(chunk);
+            int eventosNoChunk = 0;
+
+            while (eventosNoChunk < EVENTOS_POR_CHUNK) {
+                if (serie == null || pos == serie.tamanho()) {
+                    if (proximoProduto == produtos.size()) break;
+                    produto = produtos.get(proximoProduto++);
+                    serie = tsdb.getEventosFiltrados(List.of(produto), diasAtras, filtro).get(produto);
+                    pos = 0;
+                    continue;
+                }
+                int n = Math.min(serie.tamanho() - pos, EVENTOS_POR_CHUNK - eventosNoChunk);
+                cout.writeUTF(produto);
+                cout.writeInt(n);
+                for (int fim = pos + n; pos < fim; pos++) {
+                    Evento.escrever(cout, serie.getQuantidade(pos), serie.getPreco(pos), serie.getTimestamp(pos));
+                }
+                eventosNoChunk += n;
+                total += n;
+            }
+            return eventosNoChunk == 0 ? null : chunk.toByteArray();
+        }
+
+        @Override
+        public byte[] fim() throws IOException {
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            new DataOutputStream(baos).writeLong(total); // Vai no OK que fecha o fluxo
+            return baos.toByteArray();
+        }
+    }
+}
@@ -0,0 +1,335 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Servidor não bloqueante (--modo=nio), alternativa ao "uma thread por cliente" do modo bloqueante.
+ *
+ *  - Uma thread aceita ligações e distribui-as (round-robin) por poucos reatores;
+ *  - cada reator tem um Selector e descodifica os frames de forma incremental (mesmo formato
+ *    do Frame: Tamanho(4) Tag(4) OpCode(4) Payload), sem threads paradas em ligações inativas;
+ *  - os pedidos são tratados por um pool limitado de trabalhadores, com o mesmo ServerWorker
+ *    do modo bloqueante. Cada ligação tem no máximo um pedido em curso (a ordem e o login
+ *    mantêm-se); as esperas (vendas simultâneas/consecutivas) vão para um pool à parte,
+ *    porque podem durar até ao fim do dia e esgotariam os trabalhadores.
+ */
+public class ServidorNIO {
+    private static final int MAX_FRAME = 64 * 1024 * 1024;    // Pedido maior do que isto fecha a ligação
+    private static final int MAX_PEDIDOS_LIGACAO = 256;        // Com mais em fila deixamos de ler a ligação
+    private static final int MAX_SAIDA_LIGACAO = 1024 * 1024;  // Bytes por enviar antes de travar quem responde
+
+    private final TSDB tsdb;
+    private final int porto;
+    private final Reator[] reatores;
+    private final ExecutorService trabalhadores;
+    private final ExecutorService esperas;
+
+    public ServidorNIO(TSDB tsdb, int porto, int numReatores, int numTrabalhadores) throws IOException {
+        this(tsdb, porto, numReatores, numTrabalhadores, ModoThreads.PLATAFORMA);
+    }
+
+    /**
+     * Com ModoThreads.VIRTUAIS o pool de trabalhadores continua limitado (o mesmo nº de threads,
+     * agora virtuais) e cada espera corre na sua própria thread virtual em vez de uma thread do sistema.
+     * Os reatores são sempre threads de plataforma (poucos e sempre ocupados).
+     */
+    public ServidorNIO(TSDB tsdb, int porto, int numReatores, int numTrabalhadores, ModoThreads threads)
+            throws IOException {
+        this.tsdb = tsdb;
+        this.porto = porto;
+        this.reatores = new Reator[Math.max(1, numReatores)];
+        for (int i = 0; i < reatores.length; i++) reatores[i] = new Reator();
+        this.trabalhadores = Executors.newFixedThreadPool(Math.max(1, numTrabalhadores), threads.fabrica("trabalhador"));
+        this.esperas = threads == ModoThreads.VIRTUAIS
+                ? Executors.newThreadPerTaskExecutor(threads.fabrica("espera"))
+                : Executors.newCachedThreadPool(threads.fabrica("espera"));
+    }
+
+    // Arranca os reatores e fica a aceitar ligações (não retorna)
+    public void executar() throws IOException {
+        for (int i = 0; i < reatores.length; i++) {
+            new Thread(reatores[i], "reator-" + i).start();
+        }
+        try (ServerSocketChannel servidor = ServerSocketChannel.open()) {
+            servidor.bind(new InetSocketAddress(porto));
+            int proximo = 0;
+            while (true) {
+                SocketChannel canal = servidor.accept();
+                System.out.println("[REDE] Novo cliente conectado: " + canal.getRemoteAddress());
+                reatores[proximo].registar(canal);
+                proximo = (proximo + 1) % reatores.length;
+            }
+        }
+    }
+
+    private static boolean podeBloquear(int opCode) {
+        return opCode == OpCode.SIMULTANEOUS_SALES || opCode == OpCode.CONSECUTIVE_SALES;
+    }
+
+    // --- REATOR ---
+
+    private class Reator implements Runnable {
+        private final Selector selector;
+        private final Queue<SocketChannel> novas = new ConcurrentLinkedQueue<>();
+        // Ligações cujo interesse (leitura/escrita) mudou: só o reator mexe nas SelectionKeys
+        private final Queue<Ligacao> alteracoes = new ConcurrentLinkedQueue<>();
+
+        Reator() throws IOException {
+            this.selector = Selector.open();
+        }
+
+        // Chamado pela thread que aceita: o registo no Selector é feito pelo próprio reator
+        void registar(SocketChannel canal) {
+            novas.add(canal);
+            selector.wakeup();
+        }
+
+        // Chamado por qualquer thread: o reator aplica o novo interesse antes do próximo select()
+        void alterarInteresse(Ligacao l) {
+            alteracoes.add(l);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                try {
+                    selector.select();
+
+                    SocketChannel nova;
+                    while ((nova = novas.poll()) != null) {
+                        nova.configureBlocking(false);
+                        SelectionKey chave = nova.register(selector, SelectionKey.OP_READ);
+                        chave.attach(new Ligacao(nova, chave, this));
+                    }
+
+                    Ligacao alterada;
+                    while ((alterada = alteracoes.poll()) != null) alterada.aplicarInteresse();
+
+                    Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                    while (it.hasNext()) {
+                        SelectionKey chave = it.next();
+                        it.remove();
+                        Ligacao l = (Ligacao) chave.attachment();
+                        try {
+                            if (chave.isValid() && chave.isWritable()) l.escreverPendente();
+                            if (chave.isValid() && chave.isReadable()) l.ler();
+                        } catch (IOException | CancelledKeyException e) {
+                            l.fechar();
+                        }
+                    }
+                } catch (IOException e) {
+                    System.err.println("Erro no reator: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    // --- LIGAÇÃO ---
+
+    private class Ligacao implements CanalRespostas {
+        private final SocketChannel canal;
+        private final SelectionKey chave;
+        private final Reator reator;
+        private final ServerWorker worker;
+        private ByteBuffer entrada = ByteBuffer.allocate(16 * 1024); // Só usado pelo reator
+
+        private final ReentrantLock lock = new ReentrantLock();
+        private final Condition drenado = lock.newCondition();
+        private final ArrayDeque<Frame> pedidos = new ArrayDeque<>();
+        private final ArrayDeque<ByteBuffer> saida = new ArrayDeque<>();
+        private long bytesPorEnviar = 0;
+        private boolean emCurso = false;   // Há um pedido desta ligação num dos pools
+        private boolean fechada = false;
+        // Interesse pretendido; aplicado à chave pelo reator (aplicarInteresse)
+        private boolean querLer = true;
+        private boolean querEscrever = false;
+
+        Ligacao(SocketChannel canal, SelectionKey chave, Reator reator) {
+            this.canal = canal;
+            this.chave = chave;
+            this.reator = reator;
+            this.worker = new ServerWorker(tsdb, this);
+        }
+
+        // Chamado com o lock adquirido
+        private void pedirInteresse(boolean ler, boolean escrever) {
+            if (ler == querLer && escrever == querEscrever) return;
+            querLer = ler;
+            querEscrever = escrever;
+            reator.alterarInteresse(this);
+        }
+
+        // Só na thread do reator
+        void aplicarInteresse() {
+            lock.lock();
+            try {
+                if (fechada || !chave.isValid()) return;
+                chave.interestOps((querLer ? SelectionKey.OP_READ : 0) | (querEscrever ? SelectionKey.OP_WRITE : 0));
+            } catch (CancelledKeyException ignored) {
+                // Fechada entretanto
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        // 1. Ler o que houver e extrair os frames completos; um frame a meio fica no buffer
+        void ler() throws IOException {
+            if (canal.read(entrada) < 0) {
+                fechar();
+                return;
+            }
+            entrada.flip();
+            List<Frame> frames = new ArrayList<>();
+            while (entrada.remaining() >= 4) {
+                int total = entrada.getInt(entrada.position()); // Tag + OpCode + Payload
+                if (total < 8 || total > MAX_FRAME) throw new IOException("Frame inválido (" + total + " bytes).");
+                if (entrada.remaining() < 4 + total) {
+                    // Incompleto: garantir que o frame inteiro cabe no buffer e esperar pelo resto
+                    if (entrada.capacity() < 4 + total) {
+                        entrada = ByteBuffer.allocate(4 + total).put(entrada).flip();
+                    }
+                    break;
+                }
+                entrada.getInt();
+                int tag = entrada.getInt();
+                int opCode = entrada.getInt();
+                byte[] payload = new byte[total - 8];
+                entrada.get(payload);
+                frames.add(new Frame(tag, opCode, payload));
+            }
+            entrada.compact();
+            if (!frames.isEmpty()) receber(frames);
+        }
+
+        // 2. Pôr os pedidos em fila; se nenhum estiver em curso, arrancar o primeiro
+        private void receber(List<Frame> frames) {
+            lock.lock();
+            try {
+                if (fechada) return;
+                pedidos.addAll(frames);
+                if (pedidos.size() >= MAX_PEDIDOS_LIGACAO) {
+                    // Cliente a mandar mais depressa do que o servidamos: o TCP trava-o
+                    pedirInteresse(false, querEscrever);
+                }
+                if (emCurso) return;
+                emCurso = true;
+            } finally {
+                lock.unlock();
+            }
+            proximoPedido();
+        }
+
+        // 3. Um pedido de cada vez por ligação: o seguinte só é agendado quando este termina
+        private void proximoPedido() {
+            Frame f;
+            lock.lock();
+            try {
+                f = fechada ? null : pedidos.poll();
+                if (f == null) {
+                    emCurso = false;
+                    return;
+                }
+                if (pedidos.size() < MAX_PEDIDOS_LIGACAO / 2 && !querLer) {
+                    pedirInteresse(true, querEscrever);
+                }
+            } finally {
+                lock.unlock();
+            }
+
+            (podeBloquear(f.opCode) ? esperas : trabalhadores).execute(() -> {
+                try {
+                    worker.processar(f);
+                } catch (IOException e) {
+                    fechar();
+                } catch (RuntimeException | Error e) {
+                    // Escapou ao processar() (ex.: OutOfMemoryError): a ligação fica num estado desconhecido
+                    System.err.println("Erro no trabalhador: " + e);
+                    fechar();
+                } finally {
+                    // Sempre: senão o emCurso ficava a true e os pedidos seguintes nunca corriam
+                    proximoPedido();
+                }
+            });
+        }
+
+        /**
+         * Chamado pelos trabalhadores (ServerWorker) para responder. Tenta escrever já;
+         * o que o socket não aceitar fica em fila para o reator. Se a fila passar de
+         * MAX_SAIDA_LIGACAO (ex.: muitas respostas para um cliente que não lê), quem responde espera.
+         */
+        @Override
+        public void send(int tag, int opCode, byte[] data) throws IOException {
+            ByteBuffer frame = ByteBuffer.allocate(12 + data.length);
+            frame.putInt(8 + data.length).putInt(tag).putInt(opCode).put(data).flip();
+
+            lock.lock();
+            try {
+                while (!fechada && bytesPorEnviar > MAX_SAIDA_LIGACAO) drenado.awaitUninterruptibly();
+                if (fechada) throw new IOException("Ligação fechada.");
+
+                saida.add(frame);
+                bytesPorEnviar += frame.remaining();
+                if (saida.size() == 1) escrever();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void escreverPendente() throws IOException {
+            lock.lock();
+            try {
+                if (!fechada) escrever();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        // Chamado com o lock adquirido: escreve até esvaziar a fila ou o socket deixar de aceitar
+        private void escrever() throws IOException {
+            while (!saida.isEmpty()) {
+                ByteBuffer b = saida.peek();
+                bytesPorEnviar -= canal.write(b);
+                if (b.hasRemaining()) break;
+                saida.poll();
+            }
+            // O socket encheu: o reator avisa quando voltar a aceitar (OP_WRITE)
+            pedirInteresse(querLer, !saida.isEmpty());
+            drenado.signalAll();
+        }
+
+        void fechar() {
+            lock.lock();
+            try {
+                if (fechada) return;
+                fechada = true;
+                pedidos.clear();
+                saida.clear();
+                drenado.signalAll();
+            } finally {
+                lock.unlock();
+            }
+            chave.cancel();
+            try {
+                canal.close();
+            } catch (IOException ignored) {
+            }
+            System.out.println("Cliente terminou a ligação.");
+        }
+    }
+}
@@ -0,0 +1,136 @@
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Sketch de quantis dos preços de venda (estilo DDSketch): cada preço cai num balde logarítmico
+ * de índice ceil(log_gama(preco)), com gama = (1 + ALFA) / (1 - ALFA).
+ *
+ * Garantia: para os quantis servidos pelos baldes não colapsados, o valor devolvido está a
+ * um erro RELATIVO de no máximo ALFA (1%) do verdadeiro quantil das vendas.
+ * A memória é limitada a MAX_BALDES contadores; se o intervalo de preços exigir mais,
+ * os baldes mais baratos são colapsados no primeiro (só os quantis mais baixos perdem precisão).
+ * Juntar dois sketches é somar baldes: o resultado é igual ao sketch de todas as vendas.
+ *
+ * Cada venda conta uma vez (não é ponderada pela quantidade); preços <= 0 vão para um contador à parte.
+ */
+public class SketchPrecos {
+    public static final double ALFA = 0.01;
+    private static final double GAMA = (1 + ALFA) / (1 - ALFA);
+    private static final double LOG_GAMA = Math.log(GAMA);
+    private static final int MAX_BALDES = 2048;
+
+    private long[] contagens = new long[0];
+    private int indiceMinimo = 0;  // Índice logarítmico de contagens[0]
+    private long zeros = 0;        // Vendas com preço <= 0
+    private long total = 0;
+
+    public void adicionar(double preco) {
+        total++;
+        if (preco <= 0) {
+            zeros++;
+            return;
+        }
+        int indice = (int) Math.ceil(Math.log(preco) / LOG_GAMA);
+        garantirIntervalo(indice, indice);
+        contagens[Math.max(0, indice - indiceMinimo)]++;
+    }
+
+    // Constrói o sketch de um produto numa passagem pelas colunas
+    public static SketchPrecos calcular(VistaEventos serie) {
+        if (serie == null || serie.tamanho() == 0) return null;
+        SketchPrecos s = new SketchPrecos();
+        for (int i = 0; i < serie.tamanho(); i++) s.adicionar(serie.getPreco(i));
+        return s;
+    }
+
+    // Soma de dois sketches (associativo; não altera os argumentos)
+    public static SketchPrecos juntar(SketchPrecos a, SketchPrecos b) {
+        if (a == null) return b;
+        if (b == null) return a;
+        SketchPrecos res = new SketchPrecos();
+        res.somar(a);
+        res.somar(b);
+        return res;
+    }
+
+    private void somar(SketchPrecos outro) {
+        total += outro.total;
+        zeros += outro.zeros;
+        if (outro.contagens.length == 0) return;
+        garantirIntervalo(outro.indiceMinimo, outro.indiceMinimo + outro.contagens.length - 1);
+        for (int i = 0; i < outro.contagens.length; i++) {
+            contagens[Math.max(0, outro.indiceMinimo + i - indiceMinimo)] += outro.contagens[i];
+        }
+    }
+
+    // Alarga o array para cobrir [min, max]; acima de MAX_BALDES colapsa os índices mais baixos
+    private void garantirIntervalo(int min, int max) {
+        if (contagens.length == 0) {
+            int inicio = Math.max(min, max - MAX_BALDES + 1);
+            contagens = new long[max - inicio + 1];
+            indiceMinimo = inicio;
+            return;
+        }
+        int maxAtual = indiceMinimo + contagens.length - 1;
+        int novoMax = Math.max(max, maxAtual);
+        int novoMin = Math.max(Math.min(min, indiceMinimo), novoMax - MAX_BALDES + 1);
+        if (novoMin == indiceMinimo && novoMax == maxAtual) return;
+
+        long[] novas = new long[novoMax - novoMin + 1];
+        for (int i = 0; i < contagens.length; i++) {
+            novas[Math.max(0, indiceMinimo + i - novoMin)] += contagens[i];
+        }
+        contagens = novas;
+        indiceMinimo = novoMin;
+    }
+
+    /**
+     * Preço no quantil q (0 ≤ q ≤ 1), ex.: 0.5, 0.95, 0.99.
+     * Devolve 0 se o sketch estiver vazio.
+     */
+    public double quantil(double q) {
+        if (total == 0) return 0;
+        long posicao = (long) (Math.max(0, Math.min(1, q)) * (total - 1)); // Ordem da venda pretendida
+        if (posicao < zeros) return 0;
+
+        long acumulado = zeros;
+        for (int i = 0; i < contagens.length; i++) {
+            acumulado += contagens[i];
+            if (acumulado > posicao) {
+                // Valor representativo do balde (meio geométrico): erro relativo <= ALFA
+                return 2 * Math.pow(GAMA, indiceMinimo + i) / (GAMA + 1);
+            }
+        }
+        return 2 * Math.pow(GAMA, indiceMinimo + contagens.length - 1) / (GAMA + 1);
+    }
+
+    public long getTotal() { return total; }
+
+    public long bytesEmHeap() {
+        return 48 + 8L * contagens.length;
+    }
+
+    // --- FORMATO EM DISCO ---
+    // Total(8) Zeros(8) IndiceMinimo(4) NumBaldes(4) Contagens(4 cada; só baldes de um dia, cabem em int)
+
+    public void escrever(DataOutputStream out) throws IOException {
+        out.writeLong(total);
+        out.writeLong(zeros);
+        out.writeInt(indiceMinimo);
+        out.writeInt(contagens.length);
+        for (long c : contagens) out.writeInt((int) c);
+    }
+
+    public static SketchPrecos ler(ByteBuffer buffer, int pos) {
+        SketchPrecos s = new SketchPrecos();
+        s.total = buffer.getLong(pos);
+        s.zeros = buffer.getLong(pos + 8);
+        s.indiceMinimo = buffer.getInt(pos + 16);
+        s.contagens = new long[buffer.getInt(pos + 20)];
+        for (int i = 0; i < s.contagens.length; i++) {
+            s.contagens[i] = buffer.getInt(pos + 24 + 4 * i) & 0xFFFFFFFFL;
+        }
+        return s;
+    }
+}
@@ -1,17 +1,73 @@
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
 
 public class Stats {
     // Totais acumulados para UM produto em UM dia específico
     public final long quantidadeTotal;
     public final double volumeTotal;   // (Soma de: quantidade * preco)
     public final double precoMaximo;
+    public final double precoMinimo;
+    public final long numEventos;      // Número de vendas
 
-    public Stats(long qtd, double vol, double max) {
+    public Stats(long qtd, double vol, double max, double min, long numEventos) {
         this.quantidadeTotal = qtd;
         this.volumeTotal = vol;
         this.precoMaximo = max;
+        this.precoMinimo = min;
+        this.numEventos = numEventos;
     }
 
     public long getQuantidadeTotal() { return quantidadeTotal; }
     public double getVolumeTotal() { return volumeTotal; }
     public double getPrecoMaximo() { return precoMaximo; }
-}
\ No newline at end of file
+    public double getPrecoMinimo() { return precoMinimo; }
+    public long getNumEventos() { return numEventos; }
+    public double getPrecoMedio() { return quantidadeTotal == 0 ? 0 : volumeTotal / quantidadeTotal; }
+
+    // Resumo "vazio" (produto sem vendas no período), para responder sem enviar null
+    public static final Stats VAZIO = new Stats(0, 0, 0, 0, 0);
+
+    // Formato binário usado no protocolo (GET_STATS): Qtd(8) Volume(8) Max(8) Min(8) NumEventos(8)
+    public void serialize(DataOutputStream out) throws IOException {
+        out.writeLong(quantidadeTotal);
+        out.writeDouble(volumeTotal);
+        out.writeDouble(precoMaximo);
+        out.writeDouble(precoMinimo);
+        out.writeLong(numEventos);
+    }
+
+    public static Stats deserialize(DataInputStream in) throws IOException {
+        return new Stats(in.readLong(), in.readDouble(), in.readDouble(), in.readDouble(), in.readLong());
+    }
+
+    // Junta os resumos de dois períodos (associativo: serve de redução nas consultas multi-dia)
+    public static Stats juntar(Stats a, Stats b) {
+        if (a == null) return b;
+        if (b == null) return a;
+        return new Stats(a.quantidadeTotal + b.quantidadeTotal, a.volumeTotal + b.volumeTotal,
+                Math.max(a.precoMaximo, b.precoMaximo), Math.min(a.precoMinimo, b.precoMinimo),
+                a.numEventos + b.numEventos);
+    }
+
+    // Calcula o resumo de um produto numa única passagem pelas colunas
+    public static Stats calcular(VistaEventos serie) {
+        if (serie == null || serie.tamanho() == 0) return null;
+
+        long qtdTotal = 0;
+        double volTotal = 0;
+        double precoMax = 0;
+        double precoMin = Double.MAX_VALUE;
+
+        for (int i = 0; i < serie.tamanho(); i++) {
+            int qtd = serie.getQuantidade(i);
+            double preco = serie.getPreco(i);
+            qtdTotal += qtd;
+            volTotal += (qtd * preco);
+            if (preco > precoMax) precoMax = preco;
+            if (preco < precoMin) precoMin = preco;
+        }
+
+        return new Stats(qtdTotal, volTotal, precoMax, precoMin, serie.tamanho());
+    }
+}
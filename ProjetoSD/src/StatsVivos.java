@@ -0,0 +1,43 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Resumo de UM produto no dia corrente, atualizado a cada venda sem locks:
+ * somas em LongAdder/DoubleAdder (sem disputa entre escritores) e máximo/mínimo por CAS.
+ *
+ * A leitura é O(1) e nunca bloqueia a ingestão. Como os campos são lidos um a um,
+ * uma leitura concorrente com uma venda pode ver essa venda só em parte dos campos;
+ * para um valor "ao vivo" isso é aceitável (a venda aparece por inteiro na leitura seguinte).
+ */
+public class StatsVivos {
+    private final LongAdder quantidade = new LongAdder();
+    private final DoubleAdder volume = new DoubleAdder();
+    private final LongAdder eventos = new LongAdder();
+    private final AtomicLong maximoBits = new AtomicLong(Double.doubleToRawLongBits(0.0));
+    private final AtomicLong minimoBits = new AtomicLong(Double.doubleToRawLongBits(Double.MAX_VALUE));
+
+    public void registar(int qtd, double preco) {
+        quantidade.add(qtd);
+        volume.add(qtd * preco);
+
+        long bits = Double.doubleToRawLongBits(preco);
+        long atual;
+        while (preco > Double.longBitsToDouble(atual = maximoBits.get()) && !maximoBits.compareAndSet(atual, bits)) {
+            // Outro escritor mudou o máximo entretanto: voltar a comparar
+        }
+        while (preco < Double.longBitsToDouble(atual = minimoBits.get()) && !minimoBits.compareAndSet(atual, bits)) {
+            // Idem para o mínimo
+        }
+
+        eventos.increment();
+    }
+
+    // Fotografia atual como Stats, ou null se o produto ainda não vendeu hoje
+    public Stats instantaneo() {
+        long n = eventos.sum();
+        if (n == 0) return null;
+        return new Stats(quantidade.sum(), volume.sum(),
+                Double.longBitsToDouble(maximoBits.get()), Double.longBitsToDouble(minimoBits.get()), n);
+    }
+}
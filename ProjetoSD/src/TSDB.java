@@ -1,38 +1,203 @@
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
+import java.util.PriorityQueue;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.IntStream;
 
 public class TSDB {
     private final int D; // Dias de retenção total
-    private final int S; // Limite de séries em memória
     private final Notificador notificador;
+    private final WriteAheadLog wal;
     private int contadorDias = 0; // Para gerar IDs de ficheiro únicos
 
     // Controlo de utilizadores
     private final Map<String, String> utilizadores = new HashMap<>();
     private final ReentrantReadWriteLock authLock = new ReentrantReadWriteLock();
 
-    // Dia Atual: Onde ocorrem as escritas
-    private Map<String, List<Evento>> diaCorrente = new HashMap<>();
+    // Dia Atual: Onde ocorrem as escritas. A ingestão usa o lock de LEITURA (várias em paralelo,
+    // uma por produto de cada vez); o de escrita fica só para a mudança de dia
+    private volatile Map<String, SerieProduto> diaCorrente = new ConcurrentHashMap<>();
     private final ReentrantReadWriteLock currentLock = new ReentrantReadWriteLock();
+    // Resumo ao vivo de cada produto no dia corrente (lido sem locks pelas consultas "com hoje")
+    private volatile Map<String, StatsVivos> statsHoje = new ConcurrentHashMap<>();
 
-
-    // Dentro da classe TSDB
-    private final List<Integer> diasEmMemoria = new ArrayList<>(); // Lista para controlar o limite S
+    // Orçamento de heap para os dias do histórico (política 2Q)
+    private final GestorResidencia residencia;
 
     // Histórico: Dias anteriores (1 a D)
     // Cada SerieDia terá o seu próprio ficheiro e lock interno
     private final Map<Integer, SerieDia> historico = new HashMap<>();
     private final ReentrantReadWriteLock histLock = new ReentrantReadWriteLock();
+    // Cargas de disco em curso, por diaID (quem chega depois espera pelo mesmo futuro)
+    private final Map<Integer, CompletableFuture<Void>> cargas = new ConcurrentHashMap<>();
+
+    // Escrita dos dias fechados para disco, por ordem, fora do caminho crítico da mudança de dia
+    private final ExecutorService persistencia = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "persistencia-dias");
+        t.setDaemon(true); // Se o processo morrer a meio, o dia_N.wal permite recuperar o dia
+        return t;
+    });
+    private volatile long ultimaPausaRollover = 0;
+
+    // Consultas multi-dia: os dias são agregados em paralelo neste pool
+    private static final int MAX_CARGAS_DISCO = 4;
+    private final ForkJoinPool poolConsultas;
+    // Limita as cargas de disco simultâneas (o pool pode ter mais threads do que o disco aguenta)
+    private final Semaphore permissoesIO;
+
+    // Resumos por produto ao longo dos dias retidos (consultas de agregação sem tocar nas SerieDia)
+    private final IndiceAgregado indice = new IndiceAgregado();
+
+    public TSDB(int D, long orcamentoMemoria) throws IOException {
+        this(D, orcamentoMemoria, WriteAheadLog.Durabilidade.DESLIGADA);
+    }
+
+    public TSDB(int D, long orcamentoMemoria, WriteAheadLog.Durabilidade durabilidade) throws IOException {
+        this(D, orcamentoMemoria, durabilidade, Runtime.getRuntime().availableProcessors());
+    }
 
-    public TSDB(int D, int S) {
+    public TSDB(int D, long orcamentoMemoria, WriteAheadLog.Durabilidade durabilidade, int paralelismo)
+            throws IOException {
         this.D = D;
-        this.S = S;
-        this.notificador = new Notificador(this.currentLock.writeLock());
+        this.poolConsultas = new ForkJoinPool(paralelismo);
+        this.permissoesIO = new Semaphore(Math.min(paralelismo, MAX_CARGAS_DISCO));
+        this.residencia = new GestorResidencia(orcamentoMemoria);
+
+        // Retomar os dias que já estavam em disco (o histórico sobrevive a reinícios)
+        recuperarHistorico();
+        // O notificador parte do dia recuperado: as esperas comparam o dia delas com este ID
+        this.notificador = new Notificador(contadorDias);
+
+        // Repor os eventos do dia corrente que estavam no log antes de uma falha.
+        // Faz-se em qualquer modo: o log pode vir de um arranque anterior com o WAL ligado, e
+        // se ficasse para trás seria reposto mais tarde, já noutro dia.
+        File corrente = new File(WriteAheadLog.FICHEIRO_CORRENTE);
+        int repostos = WriteAheadLog.reproduzir(corrente,
+                (produto, qtd, preco, ts) -> {
+                    diaCorrente.computeIfAbsent(produto, k -> new SerieProduto()).adicionarComBaldes(qtd, preco, ts);
+                    statsHoje.computeIfAbsent(produto, k -> new StatsVivos()).registar(qtd, preco);
+                });
+        if (repostos > 0) System.out.println("[WAL] " + repostos + " eventos do dia corrente repostos.");
+        // Sem WAL, os eventos repostos passam a valer o mesmo que os outros deste modo (só em memória)
+        if (durabilidade == WriteAheadLog.Durabilidade.DESLIGADA && corrente.exists() && !corrente.delete()) {
+            throw new IOException("Não foi possível apagar " + corrente);
+        }
+        this.wal = new WriteAheadLog(durabilidade);
+    }
+
+    // --- ARRANQUE ---
+
+    private static final Pattern PADRAO_DIA = Pattern.compile("dia_(\\d+)\\.(bin|wal)");
+
+    /**
+     * Reconstrói o histórico a partir dos ficheiros dia_N.bin existentes.
+     * Os dias ficam registados como SerieDia "frias" (nada é carregado); só o cabeçalho
+     * e o rodapé de cada ficheiro são validados, em paralelo.
+     */
+    private void recuperarHistorico() throws IOException {
+        File[] ficheiros = new File(".").listFiles();
+        if (ficheiros == null) return;
+
+        TreeSet<Integer> diasBin = new TreeSet<>();
+        TreeSet<Integer> diasWal = new TreeSet<>();
+        for (File f : ficheiros) {
+            Matcher m = PADRAO_DIA.matcher(f.getName());
+            if (!m.matches()) continue;
+            int id = Integer.parseInt(m.group(1));
+            if (m.group(2).equals("bin")) diasBin.add(id);
+            else diasWal.add(id);
+        }
+
+        // 1. Dias fechados cujo log ainda existe: a falha apanhou-os antes (ou logo depois) da persistência.
+        //    O log só é apagado com um dia_N.bin válido: se o ficheiro não passa na validação, refaz-se do log
+        for (int id : diasWal) {
+            if (!diasBin.contains(id)) {
+                reconstruirDoLog(id);
+                diasBin.add(id);
+                System.out.println("[ARRANQUE] Dia " + id + " recuperado a partir do WAL.");
+            } else if (!ficheiroValido(id)) {
+                reconstruirDoLog(id);
+                System.out.println("[ARRANQUE] Dia " + id + " inválido, reconstruído a partir do WAL.");
+            }
+            WriteAheadLog.apagarLogDoDia(id);
+        }
+
+        if (diasBin.isEmpty()) return;
+
+        // 2. O dia mais recente define o contador (nunca reescrevemos um ficheiro existente)
+        int ultimo = diasBin.last();
+        this.contadorDias = ultimo;
+
+        // 3. Fora da janela de retenção D: apagar
+        for (int id : diasBin.headSet(ultimo - D + 1)) {
+            SerieDia.ficheiroDoDia(id).delete();
+        }
+
+        // 4. Validar os cabeçalhos/rodapés e ler os resumos do diretório, em paralelo.
+        //    Um ficheiro inválido sem log do dia (já apagado no passo 1) fica de fora:
+        //    o dia não é reconstruído e o índice marca a lacuna
+        Map<Integer, Map<String, Stats>> validos = new ConcurrentHashMap<>();
+        diasBin.tailSet(ultimo - D + 1).parallelStream().forEach(id -> {
+            try {
+                validos.put(id, FicheiroDia.abrir(SerieDia.ficheiroDoDia(id)).resumos());
+            } catch (IOException e) {
+                System.err.println("[ARRANQUE] Ignorado: " + e.getMessage());
+            }
+        });
+
+        // 5. Registar os dias válidos (frios) e construir o índice, por ordem de ID
+        for (int id : new TreeSet<>(validos.keySet())) {
+            historico.put(ultimo - id + 1, new SerieDia(id, null, residencia)); // Carregado só quando for pedido
+            indice.adicionarDia(id, validos.get(id));
+        }
+        System.out.println("[ARRANQUE] " + validos.size() + " dias recuperados do disco (último: dia " + ultimo + ").");
+    }
+
+    // Reescreve o dia_N.bin com os eventos do dia_N.wal
+    private static void reconstruirDoLog(int id) throws IOException {
+        Map<String, SerieProduto> dados = new HashMap<>();
+        WriteAheadLog.reproduzir(WriteAheadLog.ficheiroDoDia(id), (produto, qtd, preco, ts) ->
+                dados.computeIfAbsent(produto, k -> new SerieProduto()).adicionarComBaldes(qtd, preco, ts));
+        new SerieDia(id, dados).persistirParaDisco();
+    }
+
+    private static boolean ficheiroValido(int id) {
+        try {
+            FicheiroDia.abrir(SerieDia.ficheiroDoDia(id));
+            return true;
+        } catch (IOException e) {
+            System.err.println("[ARRANQUE] " + e.getMessage());
+            return false;
+        }
+    }
+
+    // Espera que os dias já fechados estejam gravados em disco (benchmarks e paragem ordenada)
+    public void aguardarPersistencia() throws InterruptedException {
+        try {
+            persistencia.submit(() -> { }).get();
+        } catch (ExecutionException e) {
+            throw new IllegalStateException(e.getCause());
+        }
     }
 
     public int getDiaID() {
@@ -43,12 +208,41 @@ public class TSDB {
             currentLock.readLock().unlock();
         }
     }
+    // Mesmo ID que o Notificador usa para saber se o dia de uma espera já terminou
     public int getDiaCorrenteID() {
-        return this.contadorDias;
+        return getDiaID();
     }
 
     public Notificador getNotificador() { return this.notificador; }
-    public Map<String, List<Evento>> getDiaCorrente() { return this.diaCorrente; }
+
+    // Esperas do dia corrente: o ID e o mapa do dia são lidos juntos, sem uma mudança de dia pelo meio
+    public void esperarSimultaneo(String p1, String p2) throws Exception {
+        int dia;
+        Map<String, SerieProduto> series;
+        currentLock.readLock().lock();
+        try {
+            dia = contadorDias;
+            series = diaCorrente;
+        } finally {
+            currentLock.readLock().unlock();
+        }
+        notificador.esperarSimultaneo(p1, p2, dia, series);
+    }
+
+    public void esperarConsecutivo(String p, int n) throws Exception {
+        int dia;
+        Map<String, SerieProduto> series;
+        currentLock.readLock().lock();
+        try {
+            dia = contadorDias;
+            series = diaCorrente;
+        } finally {
+            currentLock.readLock().unlock();
+        }
+        notificador.esperarConsecutivo(p, n, dia, series);
+    }
+    public GestorResidencia getResidencia() { return this.residencia; }
+    public Map<String, SerieProduto> getDiaCorrente() { return this.diaCorrente; }
 
     private SerieDia getSerieDia(int diasAtras) {
         histLock.readLock().lock();
@@ -63,40 +257,51 @@ public class TSDB {
         }
     }
 
-    private void garantirSerieNaMemoria(int diaID) {
-        histLock.writeLock().lock();
-        try {
-            SerieDia serie = historico.get(diaID);
-            if (serie == null) return;
-
-            // --- DEBUG: VER O ESTADO ANTES ---
-            //System.out.println("[DEBUG] Acedendo Dia " + diaID + ". Lista Memória: " + diasEmMemoria);
-
-            if (serie.estaEmMemoria()) {
-                diasEmMemoria.remove((Integer) diaID);
-                diasEmMemoria.add(diaID);
-                return;
-            }
-
-            if (diasEmMemoria.size() >= S) {
-                int diaParaRemover = diasEmMemoria.remove(0);
-                //System.out.println("[SWAP] A remover dia " + diaParaRemover + " para dar lugar ao " + diaID); // DEBUG
-                SerieDia antiga = historico.get(diaParaRemover);
-                if (antiga != null) antiga.descarregarEventos();
+    /**
+     * Garante que o dia está carregado sem segurar o histLock durante o I/O.
+     * Pedidos concorrentes para o mesmo dia frio partilham uma única carga (single-flight);
+     * pedidos para outros dias seguem em paralelo.
+     */
+    private void garantirSerieNaMemoria(int diasAtras) {
+        SerieDia serie = getSerieDia(diasAtras); // Só o lock de leitura, para a consulta do mapa
+        if (serie == null) return;
+
+        if (!serie.estaEmMemoria()) {
+            int id = serie.getDiaID();
+            CompletableFuture<Void> minha = new CompletableFuture<>();
+            CompletableFuture<Void> emCurso = cargas.putIfAbsent(id, minha);
+
+            if (emCurso == null) {
+                // Somos nós a carregar; os outros ficam à espera do mesmo futuro
+                permissoesIO.acquireUninterruptibly();
+                try {
+                    if (!serie.estaEmMemoria()) serie.carregarDoDisco();
+                    minha.complete(null);
+                } catch (IOException e) {
+                    minha.completeExceptionally(e);
+                } catch (RuntimeException | Error e) {
+                    // Ficheiro corrompido pode dar outras exceções: quem espera no join() tem de sair na mesma
+                    minha.completeExceptionally(e);
+                    throw e;
+                } finally {
+                    permissoesIO.release();
+                    cargas.remove(id, minha);
+                }
+                emCurso = minha;
             }
 
-            // AGORA: Não passa o diaID, pois a série já o tem internamente
             try {
-                //System.out.println("[DISK] A carregar dia " + diaID + " do disco."); // DEBUG
-                serie.carregarDoDisco();
-                diasEmMemoria.add(diaID);
-            } catch (IOException e) {
-                e.printStackTrace();
+                emCurso.join();
+            } catch (CompletionException e) {
+                System.err.println("Erro ao carregar dia " + id + ": " + e.getCause().getMessage());
+                return;
             }
-        } finally {
-            histLock.writeLock().unlock();
         }
+
+        // O gestor decide, pelo orçamento em bytes, que outros dias têm de sair
+        residencia.acesso(serie);
     }
+
     public boolean registaUtilizador(String user, String pass) {
         authLock.writeLock().lock();
         try {
@@ -117,201 +322,426 @@ public class TSDB {
         }
     }
 
-    public void registaEvento(String produto, int qtd, double preco) {
-        if (produto == null || produto.trim().isEmpty()) throw new IllegalArgumentException("Nome inválido!");
-        if (qtd <= 0) throw new IllegalArgumentException("Quantidade deve ser positiva!");
-        if (preco < 0) throw new IllegalArgumentException("Preço não pode ser negativo!");
-        currentLock.writeLock().lock();
+    // Motivo pelo qual uma venda é rejeitada, ou null se for válida
+    private static String validar(String produto, int qtd, double preco) {
+        if (produto == null || produto.trim().isEmpty()) return "Nome inválido!";
+        if (qtd <= 0) return "Quantidade deve ser positiva!";
+        if (preco < 0) return "Preço não pode ser negativo!";
+        return null;
+    }
+
+    public void registaEvento(String produto, int qtd, double preco) throws IOException {
+        String motivo = validar(produto, qtd, preco);
+        if (motivo != null) throw new IllegalArgumentException(motivo);
+        long seq;
+        // Lock de leitura: só exclui a mudança de dia (cada evento fica no log e na série do seu dia)
+        currentLock.readLock().lock();
         try {
-            // 1. Inserir o evento na lista do dia corrente
-            long ts = System.currentTimeMillis();
-            Evento e = new Evento(qtd, preco, ts);
-            diaCorrente.putIfAbsent(produto, new ArrayList<>());
-            diaCorrente.get(produto).add(e);
+            SerieProduto serie = diaCorrente.computeIfAbsent(produto, k -> new SerieProduto());
+            serie.getLockEscrita().lock();
+            try {
+                // 1. Acrescentar ao WAL (no lock do produto, para o log ter a ordem da série
+                //    e os timestamps de cada produto ficarem crescentes)
+                long ts = System.currentTimeMillis();
+                seq = wal.registar(produto, qtd, preco, ts);
+
+                // 2. Inserir o evento na série do produto no dia corrente
+                serie.adicionarComBaldes(qtd, preco, ts);
+            } finally {
+                serie.getLockEscrita().unlock();
+            }
+            statsHoje.computeIfAbsent(produto, k -> new StatsVivos()).registar(qtd, preco);
 
-            // 2. Acordar as threads certas através do notificador
+            // 3. Acordar as threads à espera deste produto (sem lock se não houver nenhuma)
             this.notificador.notificar(produto);
 
         } finally {
-            currentLock.writeLock().unlock();
+            currentLock.readLock().unlock();
         }
+
+        // 4. Só respondemos OK quando o lote deste evento estiver em disco (group commit)
+        wal.esperarDurabilidade(seq);
     }
 
-    public double getPrecoMedio(String produto, int d) {
-        long totalQuantidade = 0;
-        double totalVolume = 0;
-
-        for (int i = 1; i <= d; i++) {
-            // NOVIDADE: Antes de ler, gerimos a memória
-            garantirSerieNaMemoria(i);
-
-            SerieDia dia = getSerieDia(i);
-            if (dia != null) {
-                Stats s = dia.getStats(produto); // Agora o dia tem os eventos na RAM se precisar de calcular
-                if (s != null) {
-                    totalQuantidade += s.getQuantidadeTotal();
-                    totalVolume += s.getVolumeTotal();
-                }
+    /**
+     * Registo de um lote de vendas (ADD_EVENTS). Cada venda é validada como em registaEvento;
+     * as inválidas ficam de fora e são devolvidas (posição no lote -> motivo), as outras são aplicadas.
+     * As válidas vão para o WAL num só registo: ou o lote inteiro é aplicado, ou (se o WAL falhar)
+     * nenhuma venda é, e o pedido falha. Uma notificação por produto e uma só espera pela durabilidade.
+     */
+    public Map<Integer, String> registaEventos(LoteEventos lote) throws IOException {
+        // 1. Validar tudo antes de tocar no dia corrente; agrupar por produto, por ordem do nome
+        Map<Integer, String> erros = new TreeMap<>();
+        Map<String, List<Integer>> porProduto = new TreeMap<>();
+        for (int i = 0; i < lote.tamanho(); i++) {
+            String motivo = validar(lote.getProduto(i), lote.getQuantidade(i), lote.getPreco(i));
+            if (motivo != null) erros.put(i, motivo);
+            else porProduto.computeIfAbsent(lote.getProduto(i), k -> new ArrayList<>()).add(i);
+        }
+
+        int n = lote.tamanho() - erros.size();
+        if (n == 0) return erros; // Nada a registar (um registo vazio no WAL pareceria o fim do log)
+
+        // Colunas do registo no WAL, já agrupadas por produto (a ordem de cada série é a do log)
+        String[] produtos = new String[n];
+        int[] qtds = new int[n];
+        double[] precos = new double[n];
+        long[] ts = new long[n];
+        int k = 0;
+        for (Map.Entry<String, List<Integer>> e : porProduto.entrySet()) {
+            for (int i : e.getValue()) {
+                produtos[k] = e.getKey();
+                qtds[k] = lote.getQuantidade(i);
+                precos[k] = lote.getPreco(i);
+                k++;
             }
         }
-        return totalQuantidade == 0 ? 0 : totalVolume / totalQuantidade;
-    }
 
-    public double getPrecoMaximo(String produto, int d) {
-        double maximoGlobal = 0.0;
-        boolean encontrouVendas = false;
-
-        for (int i = 1; i <= d; i++) {
-            // 1. Garantir que os dados do dia i estão acessíveis na RAM
-            garantirSerieNaMemoria(i);
-
-            SerieDia dia = getSerieDia(i);
-            if (dia != null) {
-                // 2. Obter o resumo estatístico do produto para esse dia
-                Stats s = dia.getStats(produto);
-
-                if (s != null) {
-                    // 3. Comparar o máximo desse dia com o máximo global que já temos
-                    if (!encontrouVendas || s.getPrecoMaximo() > maximoGlobal) {
-                        maximoGlobal = s.getPrecoMaximo();
-                        encontrouVendas = true;
+        long seq;
+        currentLock.readLock().lock();
+        try {
+            // 2. Locks de todos os produtos do lote, sempre por ordem do nome (dois lotes nunca se bloqueiam)
+            List<SerieProduto> series = new ArrayList<>(porProduto.size());
+            for (String produto : porProduto.keySet()) {
+                series.add(diaCorrente.computeIfAbsent(produto, p -> new SerieProduto()));
+            }
+            int bloqueadas = 0;
+            try {
+                for (SerieProduto serie : series) {
+                    serie.getLockEscrita().lock();
+                    bloqueadas++;
+                }
+
+                // 3. Um só registo no WAL; se falhar, nada foi aplicado
+                Arrays.fill(ts, System.currentTimeMillis());
+                seq = wal.registarVarios(produtos, qtds, precos, ts);
+
+                k = 0;
+                int s = 0;
+                for (List<Integer> posicoes : porProduto.values()) {
+                    SerieProduto serie = series.get(s++);
+                    for (int j = 0; j < posicoes.size(); j++, k++) {
+                        serie.adicionarComBaldes(qtds[k], precos[k], ts[k]);
                     }
                 }
+            } finally {
+                for (int s = bloqueadas - 1; s >= 0; s--) series.get(s).getLockEscrita().unlock();
             }
+
+            // 4. Estatísticas do dia e uma notificação por produto, já com todas as vendas dele visíveis
+            for (int i = 0; i < n; i++) {
+                statsHoje.computeIfAbsent(produtos[i], p -> new StatsVivos()).registar(qtds[i], precos[i]);
+            }
+            for (String produto : porProduto.keySet()) this.notificador.notificar(produto);
+        } finally {
+            currentLock.readLock().unlock();
         }
 
+        // 5. Um só group commit para o lote inteiro
+        wal.esperarDurabilidade(seq);
+        return erros;
+    }
+
+    public double getPrecoMedio(String produto, int d) {
+        Stats s = agregarDias(produto, d);
+        return s == null ? 0 : s.getPrecoMedio();
+    }
+
+    public double getPrecoMaximo(String produto, int d) {
+        Stats s = agregarDias(produto, d);
         // Se nunca encontrou o produto em nenhum dia, retorna 0
-        return encontrouVendas ? maximoGlobal : 0.0;
+        return s == null ? 0.0 : s.getPrecoMaximo();
     }
 
     public long getQuantidadeTotal(String produto, int d) {
-        long acumuladoQuantidade = 0;
+        Stats s = agregarDias(produto, d);
+        return s == null ? 0 : s.getQuantidadeTotal();
+    }
 
-        // Percorre os d dias anteriores solicitados (1 ≤ d ≤ D)
-        for (int i = 1; i <= d; i++) {
-            // 1. Garante que a série temporal está na RAM (respeita o limite S)
-            garantirSerieNaMemoria(i);
+    public double getVolumeTotal(String produto, int d) {
+        Stats s = agregarDias(produto, d);
+        return s == null ? 0.0 : s.getVolumeTotal();
+    }
 
-            SerieDia dia = getSerieDia(i);
-            if (dia != null) {
-                // 2. Obtém o resumo estatístico (Lazy Caching)
-                Stats s = dia.getStats(produto);
+    // Quantidade, volume, preço médio/máximo/mínimo e nº de vendas numa única passagem pelos dias
+    public Stats getStats(String produto, int d) {
+        Stats s = agregarDias(produto, d);
+        return s == null ? Stats.VAZIO : s;
+    }
 
-                if (s != null) {
-                    // 3. Soma a quantidade vendida nesse dia específico
-                    acumuladoQuantidade += s.getQuantidadeTotal();
-                }
-            }
+    /**
+     * Como getStats, mas somando o dia corrente (ainda aberto) aos d dias anteriores;
+     * d = 0 dá só o dia de hoje. A parte de hoje vem dos acumuladores ao vivo, em O(1)
+     * e sem bloquear a ingestão.
+     */
+    public Stats getStatsComHoje(String produto, int d) {
+        while (true) {
+            Map<String, StatsVivos> hoje = statsHoje;
+            Stats anteriores = d > 0 ? agregarDias(produto, d) : null;
+            // Se o dia mudou a meio, o "hoje" lido já está no histórico: repetir para não contar duas vezes
+            if (statsHoje != hoje) continue;
+
+            StatsVivos vivos = hoje.get(produto);
+            Stats s = Stats.juntar(anteriores, vivos == null ? null : vivos.instantaneo());
+            return s == null ? Stats.VAZIO : s;
         }
-
-        return acumuladoQuantidade;
     }
 
-    public double getVolumeTotal(String produto, int d) {
-        double acumuladoVolume = 0.0;
+    /**
+     * Estatísticas de vários produtos nos d dias anteriores, pela ordem pedida.
+     * O trabalho é agrupado por dia: cada SerieDia é bloqueada e visitada uma só vez
+     * para o lote inteiro (ou nenhuma, se o índice cobrir a janela).
+     */
+    public Map<String, Stats> getStatsLote(List<String> produtos, int d) {
+        int ultimo = getDiaID();
+        Map<String, Stats> porProduto = indice.consultarLote(produtos, ultimo - d + 1, ultimo);
+        if (porProduto == null) {
+            porProduto = poolConsultas.submit(() -> IntStream.rangeClosed(1, d).parallel()
+                    .mapToObj(i -> statsLoteDoDia(produtos, i))
+                    .reduce(new HashMap<>(), TSDB::juntarLotes)).join();
+        }
 
-        // Percorre os d dias anteriores solicitados (1 ≤ d ≤ D)
-        for (int i = 1; i <= d; i++) {
-            // 1. Garante que os dados do dia i estão na RAM (respeita o limite S)
-            garantirSerieNaMemoria(i);
+        Map<String, Stats> res = new LinkedHashMap<>();
+        for (String p : produtos) res.put(p, porProduto.getOrDefault(p, Stats.VAZIO));
+        return res;
+    }
 
-            SerieDia dia = getSerieDia(i);
-            if (dia != null) {
-                // 2. Obtém os Stats (Lazy Caching na SerieDia)
-                Stats s = dia.getStats(produto);
+    private Map<String, Stats> statsLoteDoDia(List<String> produtos, int diasAtras) {
+        garantirSerieNaMemoria(diasAtras);
+        SerieDia dia = getSerieDia(diasAtras);
+        return dia == null ? new HashMap<>() : dia.getStatsLote(produtos);
+    }
 
-                if (s != null) {
-                    // 3. Acumula o volume (quantidade * preço) desse dia
-                    acumuladoVolume += s.getVolumeTotal();
-                }
+    // Redução dos lotes de dois grupos de dias (cria um mapa novo: a identidade é partilhada)
+    private static Map<String, Stats> juntarLotes(Map<String, Stats> a, Map<String, Stats> b) {
+        Map<String, Stats> res = new HashMap<>(a);
+        b.forEach((p, s) -> res.merge(p, s, Stats::juntar));
+        return res;
+    }
+
+    /**
+     * Os k produtos que mais venderam nos d dias anteriores, por volume ou por quantidade.
+     * Só usa resumos (índice ou diretório de cada dia), nunca eventos. Os produtos são
+     * repartidos pelas threads do pool e cada uma guarda só os seus k melhores (heap limitada);
+     * no fim as heaps parciais são fundidas.
+     */
+    public List<Map.Entry<String, Stats>> getTopK(int k, int d, boolean porVolume) {
+        if (k <= 0) return new ArrayList<>();
+        Comparator<Map.Entry<String, Stats>> ordem = Map.Entry.comparingByValue(porVolume
+                ? Comparator.comparingDouble(Stats::getVolumeTotal)
+                : Comparator.comparingLong(Stats::getQuantidadeTotal));
+
+        return poolConsultas.submit(() -> {
+            int ultimo = getDiaID();
+            Map<String, Stats> todos = indice.consultarTodos(ultimo - d + 1, ultimo);
+            if (todos == null) {
+                todos = IntStream.rangeClosed(1, d).parallel()
+                        .mapToObj(this::resumosDoDia)
+                        .reduce(new HashMap<>(), TSDB::juntarLotes);
             }
-        }
 
-        return acumuladoVolume;
+            PriorityQueue<Map.Entry<String, Stats>> melhores = todos.entrySet().parallelStream().collect(
+                    () -> new PriorityQueue<>(ordem),
+                    (heap, e) -> manterK(heap, e, k),
+                    (heap, outra) -> outra.forEach(e -> manterK(heap, e, k)));
+
+            List<Map.Entry<String, Stats>> res = new ArrayList<>(melhores);
+            res.sort(ordem.reversed());
+            return res;
+        }).join();
     }
 
-    public void proximoDia() {
-        currentLock.writeLock().lock();
-        histLock.writeLock().lock();
-        try {
-            // 1. AVISAR O NOTIFICADOR: O dia acabou
-            // Isto acorda todas as threads bloqueadas em await()
-            if (this.notificador != null) {
-                this.notificador.avancarDia();
-            }
+    // Heap mínima com no máximo k elementos: o menor sai quando chega um melhor
+    private static void manterK(PriorityQueue<Map.Entry<String, Stats>> heap, Map.Entry<String, Stats> e, int k) {
+        heap.offer(e);
+        if (heap.size() > k) heap.poll();
+    }
 
-            contadorDias++; // Novo ID único para o ficheiro
+    private Map<String, Stats> resumosDoDia(int diasAtras) {
+        garantirSerieNaMemoria(diasAtras);
+        SerieDia dia = getSerieDia(diasAtras);
+        return dia == null ? new HashMap<>() : dia.getTodosResumos();
+    }
+
+    /**
+     * Preços de venda nos quantis pedidos (ex.: 0.5, 0.95, 0.99) nos d dias anteriores.
+     * Junta os sketches diários do produto em paralelo; erro relativo até SketchPrecos.ALFA.
+     * Devolve zeros se o produto não vendeu no período.
+     */
+    public double[] getPercentis(String produto, int d, double[] quantis) {
+        SketchPrecos junto = poolConsultas.submit(() -> IntStream.rangeClosed(1, d).parallel()
+                .mapToObj(i -> sketchDoDia(produto, i))
+                .filter(Objects::nonNull)
+                .reduce(SketchPrecos::juntar)
+                .orElse(null)).join();
+
+        double[] res = new double[quantis.length];
+        if (junto == null) return res;
+        for (int i = 0; i < quantis.length; i++) res[i] = junto.quantil(quantis[i]);
+        return res;
+    }
 
-            // 2. Lógica de Histórico e Retenção D
-            SerieDia novoDiaAnterior = new SerieDia(contadorDias, diaCorrente);
+    private SketchPrecos sketchDoDia(String produto, int diasAtras) {
+        garantirSerieNaMemoria(diasAtras);
+        SerieDia dia = getSerieDia(diasAtras);
+        return dia == null ? null : dia.getSketch(produto);
+    }
 
+    /**
+     * Agregado do produto entre dois minutos do dia [minutoInicio, minutoFim) em cada um
+     * dos d dias anteriores (ex.: 14:00-15:00 nos últimos 7 dias). Só os baldes por minuto
+     * do intervalo são lidos, nunca os eventos.
+     */
+    public Stats getStatsIntervalo(String produto, int d, int minutoInicio, int minutoFim) {
+        if (minutoInicio < 0 || minutoFim > BaldesMinuto.MINUTOS_DIA || minutoInicio >= minutoFim) {
+            throw new IllegalArgumentException("Intervalo de minutos inválido: [" + minutoInicio + ", " + minutoFim + ")");
+        }
+        Stats s = poolConsultas.submit(() -> IntStream.rangeClosed(1, d).parallel()
+                .mapToObj(i -> {
+                    garantirSerieNaMemoria(i);
+                    SerieDia dia = getSerieDia(i);
+                    return dia == null ? null : dia.getStatsIntervalo(produto, minutoInicio, minutoFim);
+                })
+                .filter(Objects::nonNull)
+                .reduce(Stats::juntar)
+                .orElse(null)).join();
+        return s == null ? Stats.VAZIO : s;
+    }
 
-            // Atualizar a lista de memória
-            List<Integer> novaListaMemoria = new ArrayList<>();
+    /**
+     * Junta os resumos do produto nos d dias anteriores (1 ≤ d ≤ D).
+     * Normalmente a resposta sai do índice agregado, sem tocar nas SerieDia. Se o dia
+     * acabado de fechar ainda não foi indexado, cada dia é tratado numa tarefa do pool de
+     * consultas; os dias frios carregam em paralelo (até ao limite de permissoesIO)
+     * e os Stats são reduzidos com Stats.juntar.
+     */
+    private Stats agregarDias(String produto, int d) {
+        if (d < 1) return null; // Janela vazia: o mesmo 0 de sempre nos getters
+        int ultimo = getDiaID();
+        IndiceAgregado.Resultado r = indice.consultar(produto, ultimo - d + 1, ultimo);
+        if (r.coberto) return r.stats;
+        return agregarDiasEmParalelo(produto, d);
+    }
 
-            // O novo dia (que virou histórico 1) entra sempre em memória pois acabou de ser criado
-            novaListaMemoria.add(1);
+    // Sem o índice: um Stats por dia, juntos no pool (visível no pacote para o BenchAgregacao)
+    Stats agregarDiasEmParalelo(String produto, int d) {
+        if (d < 1) return null;
+        if (d == 1) return statsDoDia(produto, 1); // Não compensa ir ao pool por um só dia
 
-            // Atualizamos os índices dos dias antigos (quem era 1 vira 2, etc.)
-            for (Integer diaIndex : diasEmMemoria) {
-                int novoIndex = diaIndex + 1;
-                if (novoIndex <= D) {
-                    novaListaMemoria.add(novoIndex);
-                }
-            }
+        return poolConsultas.submit(() -> IntStream.rangeClosed(1, d).parallel()
+                .mapToObj(i -> statsDoDia(produto, i))
+                .filter(Objects::nonNull)
+                .reduce(Stats::juntar)
+                .orElse(null)).join();
+    }
 
-            // Se temos demasiada gente na memória, expulsamos os mais antigos AGORA
-            while (novaListaMemoria.size() > S) {
-                // Removemos o mais antigo da lista (o último elemento neste caso, ou índice 0)
-                // Como estamos a reconstruir, vamos remover do início (FIFO)
-                int diaParaRemover = novaListaMemoria.remove(0);
+    private Stats statsDoDia(String produto, int diasAtras) {
+        // 1. Garantir que o dia está acessível (respeita o orçamento de memória)
+        garantirSerieNaMemoria(diasAtras);
 
-                // Forçamos a saída da RAM
-                if (historico.containsKey(diaParaRemover)) {
-                    historico.get(diaParaRemover).descarregarEventos();
-                    //System.out.println("[CLEANUP] Dia " + diaParaRemover + " removido da RAM na mudança de dia.");
-                }
-            }
+        // 2. Resumo do produto nesse dia (null se não houve vendas)
+        SerieDia dia = getSerieDia(diasAtras);
+        return dia == null ? null : dia.getStats(produto);
+    }
 
-            // Atualizamos a lista oficial
-            this.diasEmMemoria.clear();
-            this.diasEmMemoria.addAll(novaListaMemoria);
+    /**
+     * Fecha o dia corrente. Dentro dos locks só trocamos as referências (dia novo vazio,
+     * rotação do histórico e do WAL); a escrita do dia fechado para disco é feita em
+     * segundo plano e, até lá, as consultas são servidas a partir da memória.
+     */
+    public void proximoDia() {
+        long inicio = System.nanoTime();
+        SerieDia novoDiaAnterior;
+        SerieDia diaParaEliminar;
+        int idFechado;
 
-            // 3. Rotação do Histórico (Código Original)
-            if (historico.containsKey(D)) {
-                SerieDia diaParaEliminar = historico.get(D);
-                diaParaEliminar.descarregarEventos(); // Garante limpeza
-                new File("dia_" + diaParaEliminar.getDiaID() + ".bin").delete();
-            }
+        currentLock.writeLock().lock();
+        histLock.writeLock().lock();
+        try {
+            contadorDias++; // Novo ID único para o ficheiro
+            idFechado = contadorDias;
 
-            for (int i = D; i > 1; i--) {
-                if (historico.containsKey(i - 1)) {
-                    historico.put(i, historico.get(i - 1));
-                }
+            // 1. AVISAR O NOTIFICADOR: O dia acabou (passa a ter o mesmo ID que a TSDB)
+            // Isto acorda todas as threads bloqueadas em await()
+            if (this.notificador != null) {
+                this.notificador.avancarDia(contadorDias);
             }
-            historico.put(1, novoDiaAnterior);
 
-            // 4. Persistência (Código Original)
+            // 2. Trocar o dia corrente por um vazio (o fechado passa a histórico 1)
+            novoDiaAnterior = new SerieDia(idFechado, diaCorrente, residencia);
+            this.diaCorrente = new ConcurrentHashMap<>();
+            this.statsHoje = new ConcurrentHashMap<>();
+
+            // O log do dia fechado passa a dia_N.wal; só é apagado quando o dia_N.bin estiver em disco
             try {
-                novoDiaAnterior.persistirParaDisco();
+                wal.rodar(idFechado);
             } catch (IOException e) {
-                System.err.println("Erro ao persistir dia " + contadorDias + ": " + e.getMessage());
+                System.err.println("Erro ao rodar o WAL do dia " + idFechado + ": " + e.getMessage());
             }
 
-            // Limpeza para o novo dia
-            this.diaCorrente = new HashMap<>();
-
-
-
-            //System.out.println("[TSDB] Dia mudado. Memória rastreada: " + diasEmMemoria);
+            // 3. Rotação do Histórico: quem estava em k passa para k+1 (o dia D sai da janela)
+            diaParaEliminar = historico.get(D);
+            Map<Integer, SerieDia> rodado = new HashMap<>();
+            for (Map.Entry<Integer, SerieDia> entry : historico.entrySet()) {
+                if (entry.getKey() < D) rodado.put(entry.getKey() + 1, entry.getValue());
+            }
+            rodado.put(1, novoDiaAnterior);
+            historico.clear();
+            historico.putAll(rodado);
 
+            // O dia fechado entra no gestor (fica preso em memória até ser gravado)
+            residencia.admitir(novoDiaAnterior);
+            if (diaParaEliminar != null) residencia.remover(diaParaEliminar.getDiaID());
         } finally {
             histLock.writeLock().unlock();
             currentLock.writeLock().unlock();
         }
+        this.ultimaPausaRollover = System.nanoTime() - inicio;
+
+        // 4. Persistência em segundo plano (fora de todos os locks da TSDB)
+        persistencia.submit(() -> persistirDiaFechado(novoDiaAnterior, diaParaEliminar));
+    }
+
+    private void persistirDiaFechado(SerieDia fechado, SerieDia expirado) {
+        long inicio = System.nanoTime();
+        int id = fechado.getDiaID();
+        try {
+            // Resumo de todos os produtos calculado uma única vez, no fecho do dia
+            fechado.calcularResumos();
+            indice.adicionarDia(id, fechado.getResumos()); // A partir daqui as consultas já não precisam do dia
+            fechado.persistirParaDisco();
+            WriteAheadLog.apagarLogDoDia(id);
+
+            // Já gravado: os resumos mudaram o tamanho e o dia passa a poder ser expulso
+            residencia.atualizarTamanho(fechado);
+            residencia.ajustar();
+            System.out.println("[PERSISTÊNCIA] Dia " + id + " gravado em " + (System.nanoTime() - inicio) / 1_000_000 + " ms.");
+        } catch (IOException | RuntimeException e) {
+            // O dia continua em memória e o dia_N.wal fica para recuperação no próximo arranque.
+            // Se não chegou ao índice, o índice marca a lacuna quando vier o dia seguinte
+            System.err.println("Erro ao persistir dia " + id + ": " + e);
+        } finally {
+            // A retenção aplica-se mesmo que este dia tenha falhado
+            indice.expirarAte(id - D);
+            if (expirado != null) {
+                expirado.descarregarEventos();
+                SerieDia.ficheiroDoDia(expirado.getDiaID()).delete();
+            }
+        }
     }
 
-    public Map<String, List<Evento>> getEventosFiltrados(List<String> produtosInteresse, int diasAtras) throws IOException {
+    // Duração (ns) da última mudança de dia durante a qual a ingestão e as consultas ficaram bloqueadas
+    public long getUltimaPausaRollover() {
+        return ultimaPausaRollover;
+    }
+
+    public Map<String, VistaEventos> getEventosFiltrados(List<String> produtosInteresse, int diasAtras) throws IOException {
+        return getEventosFiltrados(produtosInteresse, diasAtras, FiltroEventos.todos());
+    }
+
+    // Com intervalo de tempo e limites de quantidade/preço aplicados no servidor
+    public Map<String, VistaEventos> getEventosFiltrados(List<String> produtosInteresse, int diasAtras,
+                                                         FiltroEventos filtro) throws IOException {
         // 1. Gestão de Memória
         garantirSerieNaMemoria(diasAtras);
 
@@ -319,6 +749,10 @@ public class TSDB {
         if (dia == null) return new HashMap<>();
 
         // 2. Pedir ao dia para filtrar (para respeitar o Lock do dia)
-        return dia.obterEventosDe(produtosInteresse);
+        Map<String, VistaEventos> resultado = dia.obterEventosDe(produtosInteresse, filtro);
+
+        // Os produtos descodificados ficam em cache no dia: o tamanho dele mudou
+        residencia.atualizarTamanho(dia);
+        return resultado;
     }
 }
\ No newline at end of file
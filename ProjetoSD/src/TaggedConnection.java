@@ -6,7 +6,7 @@ import java.util.concurrent.locks.ReentrantLock;
 
 //classe para ler e escrever no socket sem problemas de corrida/concorrencia
 
-public class TaggedConnection implements AutoCloseable {
+public class TaggedConnection implements CanalRespostas, AutoCloseable {
     private final Socket socket;
     private final DataInputStream in;
     private final DataOutputStream out;
@@ -31,6 +31,7 @@ public class TaggedConnection implements AutoCloseable {
         }
     }
 
+    @Override
     public void send(int tag, int opCode, byte[] data) throws IOException {
         send(new Frame(tag, opCode, data));
     }
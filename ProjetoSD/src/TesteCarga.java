@@ -0,0 +1,61 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Teste de carga das ligações inativas: abre N ligações ao servidor, cada uma parada numa espera
+ * de vendas consecutivas (CONSECUTIVE_SALES), mede a latência de outros pedidos com as esperas
+ * ativas e, no fim, quanto tempo demora a acordá-las todas.
+ *
+ * Uso (com o servidor já a correr, de preferência com --wal=desligado):
+ *   java TesteCarga [ligacoes=10000] [host=localhost] [porto=12345] [threads=virtuais|plataforma]
+ *
+ * As threads do cliente (uma de leitura por ligação) são virtuais por omissão, para que o limite
+ * seja o servidor e não este processo. Ver as threads/memória do servidor em /proc/<pid>/status.
+ */
+public class TesteCarga {
+    private static final String PRODUTO = "teste-carga";
+    private static final int PEDIDOS_MEDIDOS = 2000;
+
+    public static void main(String[] args) throws Exception {
+        int n = args.length > 0 ? Integer.parseInt(args[0]) : 10_000;
+        String host = args.length > 1 ? args[1] : "localhost";
+        int porto = args.length > 2 ? Integer.parseInt(args[2]) : 12345;
+        ModoThreads threads = ModoThreads.parse(args.length > 3 ? args[3] : "virtuais");
+
+        // 1. Abrir as ligações e autenticar todas (sem esperar por cada resposta)
+        long inicio = System.nanoTime();
+        List<ClientAPI> clientes = new ArrayList<>(n);
+        for (int i = 0; i < n; i++) {
+            clientes.add(new ClientAPI(host, porto, threads));
+        }
+        clientes.get(0).register("carga", "carga"); // Se já existir, o login seguinte chega
+        List<CompletableFuture<String>> logins = new ArrayList<>(n);
+        for (ClientAPI c : clientes) logins.add(c.loginAsync("carga", "carga"));
+        for (CompletableFuture<String> f : logins) f.get();
+
+        // 2. Cada ligação fica parada no servidor à espera de 2 vendas consecutivas
+        List<CompletableFuture<String>> esperas = new ArrayList<>(n);
+        for (ClientAPI c : clientes) esperas.add(c.waitConsecutiveAsync(PRODUTO, 2));
+        Thread.sleep(2000); // Dar tempo a que todas as esperas cheguem ao servidor
+        System.out.printf("%d ligações com espera ativa em %.1f s%n", n, (System.nanoTime() - inicio) / 1e9);
+
+        // 3. Latência de pedidos normais numa ligação extra, com as esperas ativas
+        try (ClientAPI extra = new ClientAPI(host, porto)) {
+            extra.login("carga", "carga");
+            long t0 = System.nanoTime();
+            for (int i = 0; i < PEDIDOS_MEDIDOS; i++) extra.getStats(PRODUTO, 1);
+            System.out.printf("%d GET_STATS com as esperas ativas: %.0f ms%n",
+                    PEDIDOS_MEDIDOS, (System.nanoTime() - t0) / 1e6);
+
+            // 4. Duas vendas acordam todas as esperas
+            extra.addEvent(PRODUTO, 1, 1);
+            extra.addEvent(PRODUTO, 1, 1);
+            t0 = System.nanoTime();
+            for (CompletableFuture<String> f : esperas) f.get(120, TimeUnit.SECONDS);
+            System.out.printf("Todas as %d esperas acordadas em %.0f ms%n", n, (System.nanoTime() - t0) / 1e6);
+        }
+        System.exit(0);
+    }
+}
@@ -0,0 +1,14 @@
+/**
+ * Leitura por posição dos eventos de um produto num dia,
+ * sem expor a forma como as colunas estão guardadas.
+ */
+public interface VistaEventos {
+    int tamanho();
+    int getQuantidade(int i);
+    double getPreco(int i);
+    long getTimestamp(int i);
+
+    default CursorEventos cursor() {
+        return new CursorEventos(this);
+    }
+}
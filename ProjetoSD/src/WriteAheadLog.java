@@ -0,0 +1,379 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+/**
+ * Log de escrita antecipada (WAL) dos eventos do dia corrente.
+ * Cada ADD_EVENT é acrescentado ao ficheiro "corrente.wal" antes da resposta OK,
+ * para que uma falha do servidor não perca o dia inteiro.
+ *
+ * No modo POR_LOTE usamos "group commit": o primeiro escritor que precisa de esperar
+ * torna-se líder e faz um único force() para todos os registos pendentes,
+ * enquanto os restantes esperam na Condition.
+ *
+ * Formato de cada registo: Tamanho(4) CRC32(4) [Produto(UTF) Qtd(4) Preco(8) Timestamp(8)]...
+ * Um ADD_EVENT dá um registo com um evento; um ADD_EVENTS dá um só registo com todas as vendas
+ * do lote, por isso o CRC cobre o lote inteiro e a reposição aplica-o todo ou nada.
+ */
+public class WriteAheadLog implements AutoCloseable {
+    public static final String FICHEIRO_CORRENTE = "corrente.wal";
+
+    public enum Durabilidade {
+        DESLIGADA,  // Sem WAL (comportamento original)
+        POR_LOTE,   // Um force() partilhado por vários escritores concorrentes
+        POR_EVENTO; // Um force() por cada evento
+
+        public static Durabilidade parse(String s) {
+            switch (s.toLowerCase()) {
+                case "desligado": return DESLIGADA;
+                case "lote": return POR_LOTE;
+                case "evento": return POR_EVENTO;
+                default: throw new IllegalArgumentException("Modo de WAL desconhecido: " + s);
+            }
+        }
+    }
+
+    // Recebe cada evento durante a reposição do log
+    public interface Aplicador {
+        void aplicar(String produto, int qtd, double preco, long timestamp);
+    }
+
+    private final Durabilidade modo;
+    private final Lock lock = new ReentrantLock();
+    private final Condition gravado = lock.newCondition();
+
+    private FileChannel canal;
+    private final ByteArrayOutputStream pendente = new ByteArrayOutputStream();
+    private long ultimoSeq = 0;      // Último registo acrescentado
+    private long seqTomado = 0;      // Último registo já levado para gravação por um líder
+    private long seqDuravel = 0;     // Registos até aqui já estão resolvidos: em disco ou num lote falhado
+    private boolean aGravar = false; // Já existe um líder a fazer force()
+
+    // Lotes cujo write/force falhou (primeiro seq -> lote): quem esperava por eles recebe a falha,
+    // mas os lotes seguintes continuam a ser gravados (o ficheiro é cortado antes do lote falhado)
+    private static final int MAX_LOTES_FALHADOS = 1024;
+    private final TreeMap<Long, LoteFalhado> lotesFalhados = new TreeMap<>();
+
+    // Falha da qual o log não recupera sozinho (nem o corte foi possível): todas as escritas
+    // falham até à próxima rotação (rodar), que começa um ficheiro novo
+    private IOException erro = null;
+    private boolean logPartido = false; // Escrito pelo líder sem o lock, lido depois de o readquirir
+
+    private static class LoteFalhado {
+        final long ate;
+        final IOException causa;
+
+        LoteFalhado(long ate, IOException causa) {
+            this.ate = ate;
+            this.causa = causa;
+        }
+    }
+
+    public WriteAheadLog(Durabilidade modo) throws IOException {
+        this.modo = modo;
+        if (modo != Durabilidade.DESLIGADA) {
+            this.canal = abrirCanal();
+        }
+    }
+
+    private static FileChannel abrirCanal() throws IOException {
+        return FileChannel.open(new File(FICHEIRO_CORRENTE).toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+
+    public Durabilidade getModo() { return modo; }
+
+    // --- ESCRITA ---
+
+    /**
+     * Acrescenta o evento ao log e devolve o seu número de sequência.
+     * Deve ser chamado pela TSDB dentro do lock do produto (e do lock de leitura do dia corrente),
+     * para que a ordem do log coincida com a ordem de inserção na série e cada evento fique no log do seu dia.
+     */
+    public long registar(String produto, int qtd, double preco, long timestamp) throws IOException {
+        if (modo == Durabilidade.DESLIGADA) return 0;
+
+        byte[] registo = codificar(produto, qtd, preco, timestamp);
+        lock.lock();
+        try {
+            if (erro != null) throw erro;
+            pendente.write(registo);
+            long seq = ++ultimoSeq;
+
+            // Sem agrupamento: cada evento paga o seu próprio force()
+            if (modo == Durabilidade.POR_EVENTO) gravarJa(seq);
+            return seq;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Versão em lote de registar: todos os eventos num só registo, acrescentado com um só acesso
+     * ao lock (e, em POR_EVENTO, um só force()). Se falhar, nenhum dos eventos fica no log.
+     * Deve ser chamado com os locks de TODOS os produtos do lote adquiridos.
+     */
+    public long registarVarios(String[] produtos, int[] qtds, double[] precos, long[] timestamps) throws IOException {
+        if (modo == Durabilidade.DESLIGADA) return 0;
+
+        ByteArrayOutputStream corpo = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(corpo);
+        for (int i = 0; i < qtds.length; i++) {
+            out.writeUTF(produtos[i]);
+            Evento.escrever(out, qtds[i], precos[i], timestamps[i]);
+        }
+        byte[] registo = emRegisto(corpo.toByteArray());
+        lock.lock();
+        try {
+            if (erro != null) throw erro;
+            pendente.write(registo);
+            long seq = ++ultimoSeq;
+
+            if (modo == Durabilidade.POR_EVENTO) gravarJa(seq);
+            return seq;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Bloqueia até o registo 'seq' estar em disco. Chamado FORA dos locks da TSDB.
+     * Quem chega primeiro grava o lote inteiro; os outros apanham boleia nesse force().
+     */
+    public void esperarDurabilidade(long seq) throws IOException {
+        if (modo != Durabilidade.POR_LOTE) return;
+
+        lock.lock();
+        try {
+            while (seqDuravel < seq) {
+                if (erro != null) throw erro;
+
+                if (aGravar) {
+                    // Já há um líder: esperamos que o force() dele (ou o seguinte) nos cubra
+                    gravado.awaitUninterruptibly();
+                    continue;
+                }
+
+                // 1. Tornamo-nos líder e levamos tudo o que está pendente
+                aGravar = true;
+                ByteBuffer lote = ByteBuffer.wrap(pendente.toByteArray());
+                pendente.reset();
+                long desde = seqTomado + 1;
+                long alvo = ultimoSeq;
+                seqTomado = alvo;
+
+                // 2. I/O fora do lock: os outros escritores continuam a acumular o próximo lote
+                lock.unlock();
+                IOException falha;
+                try {
+                    falha = gravarOuDesfazer(lote);
+                } finally {
+                    lock.lock();
+                }
+
+                // 3. Publicar o resultado e acordar quem estava à espera
+                aGravar = false;
+                if (falha != null) registarFalha(desde, alvo, falha);
+                seqDuravel = Math.max(seqDuravel, alvo);
+                gravado.signalAll();
+            }
+
+            // Resolvido: está em disco, a não ser que o lote dele tenha falhado
+            Map.Entry<Long, LoteFalhado> falhado = lotesFalhados.floorEntry(seq);
+            if (falhado != null && seq <= falhado.getValue().ate) throw falhado.getValue().causa;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Escreve e força o buffer. Se falhar, corta o ficheiro onde estava antes, para o log não
+     * ficar com um registo a meio (a reposição pararia aí e perderia tudo o que viesse depois).
+     * Devolve a falha, ou null se correu bem. Só uma thread de cada vez (líder ou com o lock).
+     */
+    private IOException gravarOuDesfazer(ByteBuffer buf) {
+        long posAntes;
+        try {
+            posAntes = canal.size();
+        } catch (IOException e) {
+            logPartido = true;
+            return e;
+        }
+        try {
+            while (buf.hasRemaining()) canal.write(buf);
+            canal.force(false);
+            return null;
+        } catch (IOException e) {
+            try {
+                canal.truncate(posAntes);
+            } catch (IOException e2) {
+                e.addSuppressed(e2);
+                logPartido = true;
+            }
+            return e;
+        }
+    }
+
+    // Chamado com o lock adquirido, depois de uma falha de gravarOuDesfazer
+    private void registarFalha(long desde, long ate, IOException falha) {
+        System.err.println("[WAL] Falha ao gravar os registos " + desde + " a " + ate + ": " + falha.getMessage());
+        lotesFalhados.put(desde, new LoteFalhado(ate, falha));
+        // Quem esperava por lotes tão antigos já foi acordado há muito
+        while (lotesFalhados.size() > MAX_LOTES_FALHADOS) lotesFalhados.pollFirstEntry();
+        if (logPartido) erro = falha;
+    }
+
+    // POR_EVENTO, com o lock adquirido: grava já o registo 'seq' (o último pendente)
+    private void gravarJa(long seq) throws IOException {
+        ByteBuffer buf = ByteBuffer.wrap(pendente.toByteArray());
+        pendente.reset();
+        seqTomado = seq;
+        IOException falha = gravarOuDesfazer(buf);
+        if (falha != null) {
+            if (logPartido) erro = falha;
+            throw falha; // O evento não chega a ser aplicado (a TSDB só o aplica depois do registo)
+        }
+        seqDuravel = seq;
+    }
+
+    /**
+     * Fecha o log do dia que terminou: grava o que falta, renomeia-o para "dia_N.wal"
+     * e começa um "corrente.wal" vazio. O log antigo só deve ser apagado
+     * (apagarLogDoDia) depois de o dia_N.bin estar em disco.
+     * A rotação é feita mesmo que a última gravação falhe: os eventos desse dia não podem
+     * ficar no log do dia seguinte. O ficheiro novo limpa também uma falha permanente (erro).
+     */
+    public void rodar(int diaID) throws IOException {
+        if (modo == Durabilidade.DESLIGADA) return;
+
+        lock.lock();
+        try {
+            while (aGravar) gravado.awaitUninterruptibly();
+
+            ByteBuffer buf = ByteBuffer.wrap(pendente.toByteArray());
+            pendente.reset();
+            long desde = seqTomado + 1;
+            seqTomado = ultimoSeq;
+            IOException falha = null;
+            if (desde <= ultimoSeq) {
+                falha = erro == null ? gravarOuDesfazer(buf) : erro;
+                if (falha != null) registarFalha(desde, ultimoSeq, falha);
+            }
+            seqDuravel = ultimoSeq;
+            gravado.signalAll();
+
+            canal.close();
+            Files.move(new File(FICHEIRO_CORRENTE).toPath(), ficheiroDoDia(diaID).toPath(),
+                    StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            canal = abrirCanal();
+            erro = null;
+            logPartido = false;
+            if (falha != null) throw falha;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public static File ficheiroDoDia(int diaID) {
+        return new File("dia_" + diaID + ".wal");
+    }
+
+    public static void apagarLogDoDia(int diaID) {
+        ficheiroDoDia(diaID).delete();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (modo == Durabilidade.DESLIGADA) return;
+        lock.lock();
+        try {
+            while (aGravar) gravado.awaitUninterruptibly();
+            IOException falha = erro == null ? gravarOuDesfazer(ByteBuffer.wrap(pendente.toByteArray())) : erro;
+            pendente.reset();
+            canal.close();
+            if (falha != null) throw falha;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // --- CODIFICAÇÃO E REPOSIÇÃO ---
+
+    private static byte[] codificar(String produto, int qtd, double preco, long timestamp) throws IOException {
+        ByteArrayOutputStream corpo = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(corpo);
+        out.writeUTF(produto);
+        Evento.escrever(out, qtd, preco, timestamp);
+        return emRegisto(corpo.toByteArray());
+    }
+
+    // Tamanho(4) CRC32(4) e o payload
+    private static byte[] emRegisto(byte[] payload) {
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+
+        ByteBuffer registo = ByteBuffer.allocate(8 + payload.length);
+        registo.putInt(payload.length);
+        registo.putInt((int) crc.getValue());
+        registo.put(payload);
+        return registo.array();
+    }
+
+    /**
+     * Volta a aplicar todos os registos válidos de um log. Um registo incompleto ou com
+     * CRC errado (escrita interrompida pela falha) marca o fim do log: o ficheiro é
+     * truncado nesse ponto para que as novas escritas não fiquem atrás de lixo.
+     *
+     * @return número de eventos repostos
+     */
+    public static int reproduzir(File f, Aplicador aplicador) throws IOException {
+        if (!f.exists()) return 0;
+
+        int repostos = 0;
+        long posValida = 0;
+        try (FileChannel canal = FileChannel.open(f.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+             DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(f)))) {
+            while (true) {
+                int tamanho;
+                try {
+                    tamanho = in.readInt();
+                } catch (EOFException e) {
+                    break; // Fim normal do log
+                }
+                if (tamanho <= 0 || tamanho > canal.size()) break;
+
+                int crcEsperado;
+                byte[] payload = new byte[tamanho];
+                try {
+                    crcEsperado = in.readInt();
+                    in.readFully(payload);
+                } catch (EOFException e) {
+                    break; // Registo cortado a meio
+                }
+
+                CRC32 crc = new CRC32();
+                crc.update(payload);
+                if ((int) crc.getValue() != crcEsperado) break;
+
+                // Um ou mais eventos (lote de ADD_EVENTS) por registo
+                DataInputStream reg = new DataInputStream(new ByteArrayInputStream(payload));
+                while (reg.available() > 0) {
+                    aplicador.aplicar(reg.readUTF(), reg.readInt(), reg.readDouble(), reg.readLong());
+                    repostos++;
+                }
+                posValida += 8 + tamanho;
+            }
+            if (posValida < canal.size()) canal.truncate(posValida);
+        }
+        return repostos;
+    }
+}